@@ -32,7 +32,10 @@ public class Client {
 		options.addOption("u",true,"username");
 		options.addOption("rp",true,"remote port number");
 		options.addOption("rh",true,"remote hostname");
+		options.addOption("tm",true,"thread mode for connections, platform or virtual (needs JDK 21)");
 		options.addOption("s",true,"secret for username");
+		options.addOption("t",true,"topics to subscribe to, separated by commas, activities on other topics are not received");
+		options.addOption("f",true,"filters on the activities received, key=value pairs separated by commas, filters separated by semicolons");
 		
 		
 		// build the parser
@@ -67,6 +70,18 @@ public class Client {
 			Settings.setUsername(cmd.getOptionValue("u"));
 		}
 		
+		if(cmd.hasOption("tm")){
+			Settings.setThreadMode(cmd.getOptionValue("tm"));
+		}
+		
+		if(cmd.hasOption("t")){
+			Settings.setTopics(cmd.getOptionValue("t"));
+		}
+		
+		if(cmd.hasOption("f")){
+			Settings.setFilters(cmd.getOptionValue("f"));
+		}
+		
 		
 		log.info("starting client");
 		
@@ -38,6 +38,49 @@ public class Server {
 		options.addOption("lh",true,"local hostname");
 		options.addOption("a",true,"activity interval in milliseconds");
 		options.addOption("s",true,"secret for the server to use");
+		options.addOption("io",true,"io engine to use, thread or nio");
+		options.addOption("tm",true,"thread mode for connections, platform or virtual (needs JDK 21)");
+		options.addOption("rt",true,"number of reactor threads for the nio engine");
+		options.addOption("wt",true,"number of worker threads processing messages for the nio engine, 0 to use the reactors");
+		options.addOption("oq",true,"maximum number of messages queued for each connection");
+		options.addOption("op",true,"what to do when a connection's queue is full, drop-oldest, disconnect or block (waits only on the thread engine's readers)");
+		options.addOption("codec",true,"encoding to offer other servers, json (the default) or binary");
+		options.addOption("z",true,"compression to offer other servers, none or deflate");
+		options.addOption("zf",true,"when compressed links flush, after every frame or every batch of frames");
+		options.addOption("bw",true,"milliseconds a server link waits to fill a batch before writing, 0 to write straight away");
+		options.addOption("bb",true,"bytes that make a full batch for a server link");
+		options.addOption("reg",true,"how usernames are locked, flood to every server or shard by owner (every server must use the same)");
+		options.addOption("lt",true,"milliseconds a registration waits for other servers to answer");
+		options.addOption("us",true,"where users are kept, memory or log to keep them across restarts");
+		options.addOption("ud",true,"directory for the user log and snapshots");
+		options.addOption("ws",true,"when the user log is synced to disk, always, interval or never");
+		options.addOption("wi",true,"milliseconds between syncs of the user log");
+		options.addOption("lb",true,"how a server to redirect clients to is picked, least, two-choices or weighted");
+		options.addOption("cap",true,"how many clients this server can take, relative to the other servers");
+		options.addOption("lto",true,"milliseconds a server link can be silent before it is taken to be dead");
+		options.addOption("peers",true,"other servers to link to as well as the remote host, host:port separated by commas");
+		options.addOption("dw",true,"milliseconds a server remembers the messages it has flooded");
+		options.addOption("dc",true,"how many flooded messages a server remembers each window");
+		options.addOption("ov",true,"which links flooded messages go over, flood for every link or tree for only the links of the tree");
+		options.addOption("ht",true,"milliseconds a new connection has to send its first message");
+		options.addOption("hw",true,"number of threads reading new connections' first messages for the thread engine");
+		options.addOption("aq",true,"how many new connections can wait for a handshake thread");
+		options.addOption("mc",true,"most clients this server takes, 0 for no limit");
+		options.addOption("ms",true,"most server links this server accepts, 0 for no limit");
+		options.addOption("shed",true,"clients past which new logins are redirected to any server with room, 0 never");
+		options.addOption("ar",true,"activities a second one connection can send, 0 for no limit");
+		options.addOption("ab",true,"activities one connection can send at once");
+		options.addOption("ur",true,"activities a second one user can send, 0 for no limit");
+		options.addOption("ub",true,"activities one user can send at once");
+		options.addOption("an",true,"how servers announce their load, full every interval or digest for only what changed (every server must use the same)");
+		options.addOption("ad",true,"clients the load has to move by before a digest server announces it");
+		options.addOption("am",true,"milliseconds a digest server can go without announcing when its load is steady");
+		options.addOption("al",true,"whether activities are logged for clients to catch up on when they log in again, none or disk");
+		options.addOption("ld",true,"directory for the activity log");
+		options.addOption("seg",true,"bytes in each file of the activity log");
+		options.addOption("rb",true,"bytes of activities the activity log keeps");
+		options.addOption("ret",true,"milliseconds the activity log keeps activities for");
+		options.addOption("rm",true,"most activities a client catching up is sent");
 		
 		
 		// build the parser
@@ -98,6 +141,316 @@ public class Server {
 			Settings.setSecret(cmd.getOptionValue("s"));
 		}
 		
+		if(cmd.hasOption("io")){
+			Settings.setIoEngine(cmd.getOptionValue("io"));
+		}
+		
+		if(cmd.hasOption("tm")){
+			Settings.setThreadMode(cmd.getOptionValue("tm"));
+		}
+		
+		if(cmd.hasOption("rt")){
+			try{
+				int rt = Integer.parseInt(cmd.getOptionValue("rt"));
+				Settings.setReactorThreads(rt);
+			} catch (NumberFormatException e){
+				log.error("-rt requires a number of threads, parsed: "+cmd.getOptionValue("rt"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("wt")){
+			try{
+				int wt = Integer.parseInt(cmd.getOptionValue("wt"));
+				Settings.setWorkerThreads(wt);
+			} catch (NumberFormatException e){
+				log.error("-wt requires a number of threads, parsed: "+cmd.getOptionValue("wt"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("oq")){
+			try{
+				int oq = Integer.parseInt(cmd.getOptionValue("oq"));
+				Settings.setOutboundQueueSize(oq);
+			} catch (NumberFormatException e){
+				log.error("-oq requires a number of messages, parsed: "+cmd.getOptionValue("oq"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("op")){
+			Settings.setOverflowPolicy(cmd.getOptionValue("op"));
+		}
+		
+		if(cmd.hasOption("codec")){
+			Settings.setServerCodec(cmd.getOptionValue("codec"));
+		}
+		
+		if(cmd.hasOption("z")){
+			Settings.setCompression(cmd.getOptionValue("z"));
+		}
+		
+		if(cmd.hasOption("zf")){
+			Settings.setCompressionFlush(cmd.getOptionValue("zf"));
+		}
+		
+		if(cmd.hasOption("bw")){
+			try{
+				Settings.setBatchWindow(Integer.parseInt(cmd.getOptionValue("bw")));
+			} catch (NumberFormatException e){
+				log.error("-bw requires a number of milliseconds, parsed: "+cmd.getOptionValue("bw"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("bb")){
+			try{
+				Settings.setBatchBytes(Integer.parseInt(cmd.getOptionValue("bb")));
+			} catch (NumberFormatException e){
+				log.error("-bb requires a number of bytes, parsed: "+cmd.getOptionValue("bb"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("reg")){
+			Settings.setRegistration(cmd.getOptionValue("reg"));
+		}
+		
+		if(cmd.hasOption("lt")){
+			try{
+				Settings.setLockTimeout(Integer.parseInt(cmd.getOptionValue("lt")));
+			} catch (NumberFormatException e){
+				log.error("-lt requires a number of milliseconds, parsed: "+cmd.getOptionValue("lt"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("us")){
+			Settings.setUserStore(cmd.getOptionValue("us"));
+		}
+		
+		if(cmd.hasOption("ud")){
+			Settings.setUserDir(cmd.getOptionValue("ud"));
+		}
+		
+		if(cmd.hasOption("ws")){
+			Settings.setWalSync(cmd.getOptionValue("ws"));
+		}
+		
+		if(cmd.hasOption("wi")){
+			try{
+				Settings.setWalSyncInterval(Integer.parseInt(cmd.getOptionValue("wi")));
+			} catch (NumberFormatException e){
+				log.error("-wi requires a number of milliseconds, parsed: "+cmd.getOptionValue("wi"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("lb")){
+			Settings.setRedirectPolicy(cmd.getOptionValue("lb"));
+		}
+		
+		if(cmd.hasOption("cap")){
+			try{
+				Settings.setCapacity(Integer.parseInt(cmd.getOptionValue("cap")));
+			} catch (NumberFormatException e){
+				log.error("-cap requires a number of clients, parsed: "+cmd.getOptionValue("cap"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("lto")){
+			try{
+				Settings.setLinkTimeout(Integer.parseInt(cmd.getOptionValue("lto")));
+			} catch (NumberFormatException e){
+				log.error("-lto requires a number of milliseconds, parsed: "+cmd.getOptionValue("lto"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("peers")){
+			Settings.setPeers(cmd.getOptionValue("peers"));
+		}
+		
+		if(cmd.hasOption("dw")){
+			try{
+				Settings.setDedupWindow(Integer.parseInt(cmd.getOptionValue("dw")));
+			} catch (NumberFormatException e){
+				log.error("-dw requires a number of milliseconds, parsed: "+cmd.getOptionValue("dw"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("dc")){
+			try{
+				Settings.setDedupCapacity(Integer.parseInt(cmd.getOptionValue("dc")));
+			} catch (NumberFormatException e){
+				log.error("-dc requires a number of messages, parsed: "+cmd.getOptionValue("dc"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("ov")){
+			Settings.setOverlay(cmd.getOptionValue("ov"));
+		}
+		
+		if(cmd.hasOption("ht")){
+			try{
+				Settings.setHandshakeTimeout(Integer.parseInt(cmd.getOptionValue("ht")));
+			} catch (NumberFormatException e){
+				log.error("-ht requires a number of milliseconds, parsed: "+cmd.getOptionValue("ht"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("hw")){
+			try{
+				Settings.setHandshakeThreads(Integer.parseInt(cmd.getOptionValue("hw")));
+			} catch (NumberFormatException e){
+				log.error("-hw requires a number of threads, parsed: "+cmd.getOptionValue("hw"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("aq")){
+			try{
+				Settings.setAcceptQueue(Integer.parseInt(cmd.getOptionValue("aq")));
+			} catch (NumberFormatException e){
+				log.error("-aq requires a number of connections, parsed: "+cmd.getOptionValue("aq"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("mc")){
+			try{
+				Settings.setMaxClients(Integer.parseInt(cmd.getOptionValue("mc")));
+			} catch (NumberFormatException e){
+				log.error("-mc requires a number of clients, parsed: "+cmd.getOptionValue("mc"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("ms")){
+			try{
+				Settings.setMaxServers(Integer.parseInt(cmd.getOptionValue("ms")));
+			} catch (NumberFormatException e){
+				log.error("-ms requires a number of servers, parsed: "+cmd.getOptionValue("ms"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("shed")){
+			try{
+				Settings.setShedLoad(Integer.parseInt(cmd.getOptionValue("shed")));
+			} catch (NumberFormatException e){
+				log.error("-shed requires a number of clients, parsed: "+cmd.getOptionValue("shed"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("ar")){
+			try{
+				Settings.setActivityRate(Double.parseDouble(cmd.getOptionValue("ar")));
+			} catch (NumberFormatException e){
+				log.error("-ar requires a number of activities a second, parsed: "+cmd.getOptionValue("ar"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("ab")){
+			try{
+				Settings.setActivityBurst(Double.parseDouble(cmd.getOptionValue("ab")));
+			} catch (NumberFormatException e){
+				log.error("-ab requires a number of activities, parsed: "+cmd.getOptionValue("ab"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("ur")){
+			try{
+				Settings.setUserRate(Double.parseDouble(cmd.getOptionValue("ur")));
+			} catch (NumberFormatException e){
+				log.error("-ur requires a number of activities a second, parsed: "+cmd.getOptionValue("ur"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("ub")){
+			try{
+				Settings.setUserBurst(Double.parseDouble(cmd.getOptionValue("ub")));
+			} catch (NumberFormatException e){
+				log.error("-ub requires a number of activities, parsed: "+cmd.getOptionValue("ub"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("an")){
+			Settings.setAnnounce(cmd.getOptionValue("an"));
+		}
+		
+		if(cmd.hasOption("ad")){
+			try{
+				Settings.setAnnounceDelta(Integer.parseInt(cmd.getOptionValue("ad")));
+			} catch (NumberFormatException e){
+				log.error("-ad requires a number of clients, parsed: "+cmd.getOptionValue("ad"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("am")){
+			try{
+				Settings.setAnnounceMax(Integer.parseInt(cmd.getOptionValue("am")));
+			} catch (NumberFormatException e){
+				log.error("-am requires a number of milliseconds, parsed: "+cmd.getOptionValue("am"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("al")){
+			Settings.setActivityLog(cmd.getOptionValue("al"));
+		}
+		
+		if(cmd.hasOption("ld")){
+			Settings.setActivityDir(cmd.getOptionValue("ld"));
+		}
+		
+		if(cmd.hasOption("seg")){
+			try{
+				Settings.setSegmentBytes(Long.parseLong(cmd.getOptionValue("seg")));
+			} catch (NumberFormatException e){
+				log.error("-seg requires a number of bytes, parsed: "+cmd.getOptionValue("seg"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("rb")){
+			try{
+				Settings.setRetainBytes(Long.parseLong(cmd.getOptionValue("rb")));
+			} catch (NumberFormatException e){
+				log.error("-rb requires a number of bytes, parsed: "+cmd.getOptionValue("rb"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("ret")){
+			try{
+				Settings.setRetainTime(Long.parseLong(cmd.getOptionValue("ret")));
+			} catch (NumberFormatException e){
+				log.error("-ret requires a number of milliseconds, parsed: "+cmd.getOptionValue("ret"));
+				help(options);
+			}
+		}
+		
+		if(cmd.hasOption("rm")){
+			try{
+				Settings.setReplayMax(Integer.parseInt(cmd.getOptionValue("rm")));
+			} catch (NumberFormatException e){
+				log.error("-rm requires a number of activities, parsed: "+cmd.getOptionValue("rm"));
+				help(options);
+			}
+		}
+		
 		log.info("starting server");
 		
 		
@@ -108,6 +461,12 @@ public class Server {
 			public void run() {  
 				c.setTerm(true);
 				c.interrupt();
+				// give the user store a moment to sync what it has
+				try {
+					c.join(2000);
+				} catch (InterruptedException e) {
+					// exiting anyway
+				}
 		    }
 		 });
 	}
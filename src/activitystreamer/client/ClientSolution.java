@@ -15,8 +15,9 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import activitystreamer.util.Settings;
+import activitystreamer.util.Threads;
 
-public class ClientSolution extends Thread {
+public class ClientSolution implements Runnable {
 	private static final Logger log = LogManager.getLogger();
 	private static ClientSolution clientSolution;
 	private TextFrame textFrame;
@@ -26,6 +27,8 @@ public class ClientSolution extends Thread {
 	private Socket clientSocket; 
 	private BufferedReader in;
 	private OutputStreamWriter out;
+	// the aid of the last activity we got, so we can catch up when we log in again
+	private String lastAid;
 	
 	// this is a singleton object
 	public static ClientSolution getInstance(){
@@ -86,7 +89,7 @@ public class ClientSolution extends Thread {
 		log.debug("opening the gui");
 		textFrame = new TextFrame();
 		// start the client's thread
-		start();
+		Threads.newThread(this,"client").start();
 	}
 	
 	// called by the gui when the user clicks "send"
@@ -126,6 +129,7 @@ public class ClientSolution extends Thread {
 					break;
 					
 				case "LOGIN_SUCCESS":
+					subscribe();
 					break;
 
 				case "REDIRECT":
@@ -152,6 +156,7 @@ public class ClientSolution extends Thread {
 					break;
 				
 				case "ACTIVITY_BROADCAST":
+					if(msg.get("aid")!=null) lastAid = msg.get("aid").toString();
 					break;
 					
 				default :
@@ -206,16 +211,39 @@ public class ClientSolution extends Thread {
 		return true;
 	}
 	
+	@SuppressWarnings("unchecked")
 	public void sendLogin(){
 		
 		JSONObject login = new JSONObject();
 		login.put("command","LOGIN");
 		login.put("username",Settings.getUsername());
 		login.put("secret",Settings.getSecret());
+		if(lastAid!=null) login.put("resume",lastAid);
 		
 		send(login);
 	}
 
+	/*
+	 * subscribe to the topics and set the filters we were given, a redirected client
+	 * logs in again and does it again on the new server
+	 */
+	@SuppressWarnings("unchecked")
+	public void subscribe(){
+		
+		for(String topic : Settings.getTopics()){
+			JSONObject subscribe = new JSONObject();
+			subscribe.put("command","SUBSCRIBE");
+			subscribe.put("topic",topic);
+			send(subscribe);
+		}
+		for(String filter : Settings.getFilters()){
+			JSONObject add = new JSONObject();
+			add.put("command","FILTER");
+			add.put("filter",filter);
+			send(add);
+		}
+	}
+
 	// redirect 
 	public void redirect(JSONObject msg){
 		
@@ -0,0 +1,171 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONObject;
+
+/*
+ * The filters this server's clients put on the activities they get. A filter is
+ * a list of key=value pairs separated by commas, and matches an activity whose
+ * top level has every one of those keys with that value, so "authenticated_user=bob"
+ * is everything bob sends. A client with several filters gets an activity when
+ * any of them matches, and a client with none gets everything as before.
+ *
+ * Every client's filters share one index, from each key and value to the filters
+ * that ask for it. An activity is looked up once per key it has, whatever the
+ * number of clients, and a filter matches when every one of its pairs has been
+ * found, counting only the filters the activity's pairs lead to. Adding or
+ * removing a filter only copies the lists of the pairs it has, so matching never
+ * locks and a change costs no more than the filters that share its pairs.
+ */
+public class ActivityFilters {
+	// key, then value, then the filters with that pair, each list replaced rather than changed
+	private final ConcurrentHashMap<String,ConcurrentHashMap<String,Filter[]>> index = new ConcurrentHashMap<String,ConcurrentHashMap<String,Filter[]>>();
+	// the filters of each connection, a connection is only in here while it has some
+	private final ConcurrentHashMap<Connection,List<Filter>> filters = new ConcurrentHashMap<Connection,List<Filter>>();
+
+	/*
+	 * one compiled filter and whose it is
+	 */
+	private static class Filter {
+		final Connection owner;
+		final String[][] pairs;
+
+		Filter(Connection owner, String[][] pairs){
+			this.owner = owner;
+			this.pairs = pairs;
+		}
+	}
+
+	/*
+	 * parse a filter, null if it is not one
+	 */
+	static String[][] compile(String expression){
+		List<String[]> pairs = new ArrayList<String[]>();
+		for(String part : expression.split(",")){
+			int eq = part.indexOf('=');
+			if(eq<=0) return null;
+			String key = part.substring(0,eq).trim();
+			String value = part.substring(eq+1).trim();
+			if(key.isEmpty()) return null;
+			// a key asked for twice can only match if both values are the same
+			boolean again = false;
+			for(String[] pair : pairs){
+				if(pair[0].equals(key) && !pair[1].equals(value)) return null;
+				again |= pair[0].equals(key);
+			}
+			// and then it is one pair, so it is counted once when it matches
+			if(!again) pairs.add(new String[]{key,value});
+		}
+		return pairs.toArray(new String[pairs.size()][]);
+	}
+
+	/*
+	 * add a filter for a connection, returns false if it is not a filter
+	 */
+	public synchronized boolean add(Connection con, String expression){
+		String[][] pairs = compile(expression);
+		if(pairs==null) return false;
+		Filter filter = new Filter(con,pairs);
+		// into the index before the connection counts as filtered, so it never misses an
+		// activity its filter would have matched
+		for(String[] pair : pairs){
+			ConcurrentHashMap<String,Filter[]> values = index.get(pair[0]);
+			if(values==null){
+				values = new ConcurrentHashMap<String,Filter[]>();
+				index.put(pair[0],values);
+			}
+			Filter[] list = values.get(pair[1]);
+			if(list==null){
+				list = new Filter[]{filter};
+			} else {
+				list = Arrays.copyOf(list,list.length+1);
+				list[list.length-1] = filter;
+			}
+			values.put(pair[1],list);
+		}
+		List<Filter> mine = filters.get(con);
+		List<Filter> more = mine==null ? new ArrayList<Filter>() : new ArrayList<Filter>(mine);
+		more.add(filter);
+		filters.put(con,Collections.unmodifiableList(more));
+		return true;
+	}
+
+	/*
+	 * drop all of a connection's filters, so it gets everything again
+	 */
+	public synchronized void remove(Connection con){
+		List<Filter> mine = filters.remove(con);
+		if(mine==null) return;
+		for(Filter filter : mine){
+			for(String[] pair : filter.pairs){
+				ConcurrentHashMap<String,Filter[]> values = index.get(pair[0]);
+				Filter[] list = values.get(pair[1]);
+				Filter[] fewer = new Filter[list.length-1];
+				int n = 0;
+				for(Filter f : list){
+					if(f!=filter) fewer[n++] = f;
+				}
+				if(fewer.length>0){
+					values.put(pair[1],fewer);
+				} else {
+					values.remove(pair[1]);
+					if(values.isEmpty()) index.remove(pair[0]);
+				}
+			}
+		}
+	}
+
+	public boolean isEmpty(){
+		return filters.isEmpty();
+	}
+
+	/*
+	 * whether a connection only gets the activities its filters match
+	 */
+	public boolean filtered(Connection con){
+		return filters.containsKey(con);
+	}
+
+	/*
+	 * the connections with a filter that matches the activity
+	 */
+	public Set<Connection> matching(JSONObject activity){
+		if(index.isEmpty()) return Collections.emptySet();
+		Set<Connection> matched = new HashSet<Connection>();
+		// how many pairs of each filter have been found so far, only for the filters found at all
+		Map<Filter,Integer> found = new HashMap<Filter,Integer>();
+		for(Object o : activity.entrySet()){
+			Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+			Map<String,Filter[]> values = index.get(e.getKey());
+			if(values==null) continue;
+			Object value = e.getValue();
+			// only plain values can be matched, not objects or arrays
+			if(value==null || value instanceof Map || value instanceof List) continue;
+			Filter[] list = values.get(value.toString());
+			if(list==null) continue;
+			for(Filter f : list){
+				if(f.pairs.length==1){
+					matched.add(f.owner);
+					continue;
+				}
+				Integer n = found.get(f);
+				int count = n==null ? 1 : n+1;
+				if(count==f.pairs.length){
+					matched.add(f.owner);
+				} else {
+					found.put(f,count);
+				}
+			}
+		}
+		return matched;
+	}
+}
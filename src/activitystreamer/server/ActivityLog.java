@@ -0,0 +1,422 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/*
+ * Every activity this server delivers, kept on disk for a while so a client that
+ * was redirected or dropped off can log in again and be sent what it missed. A
+ * client resumes from the aid of the last activity it got, every server has the
+ * same activity under the same aid, so it can resume on any server the activity
+ * reached and not only the one it was on.
+ *
+ * The log is a run of segment files, each made its full size up front and mapped
+ * into memory, so appending is a copy into the mapping. A segment is named by the
+ * offset of its first byte in the log as a whole. Once the log holds more than
+ * the retained bytes, or a segment has had nothing written to it for the retention
+ * time, the oldest segments are deleted, never the one being written.
+ *
+ * Activities are kept as the line a client gets, so catching up sends them to
+ * the connection as they are. They are copied out of the mapping first, so that
+ * nothing outside the log points into a segment and a deleted segment can be
+ * unmapped straight away rather than whenever the garbage collector gets to it.
+ * They go through the connection's queue like anything else it is sent, so they
+ * can not get mixed up with what is written to it at the same time.
+ *
+ * A record is the length of the line, a crc32 of the rest of the record, the
+ * time, a flags byte, the aid as a length and utf-8 bytes, then the line. The
+ * unwritten part of a segment is zeros, and recovery takes a zero length, or a
+ * record that is torn or corrupt, as the end of the segment.
+ *
+ * Appending only holds the lock to take the space for a record, which is built
+ * before and copied in after, so activities arriving on many threads at once are
+ * written side by side. A segment's records are committed in the order their
+ * space was taken, and nothing past what is committed is ever read.
+ */
+public class ActivityLog {
+	private static final Logger log = LogManager.getLogger();
+	// length, crc, time, flags and the aid's length
+	private static final int HEADER = 4+4+8+1+2;
+	// the activity has a topic, only its subscribers get it so it is not sent to a client catching up
+	private static final byte TOPIC = 1;
+
+	private final File dir;
+	// all guarded by this
+	private final TreeMap<Long,Segment> segments = new TreeMap<Long,Segment>();
+	// where in the log the record after each activity starts
+	private final Map<String,Long> index = new HashMap<String,Long>();
+	private Segment active;
+	private long bytes = 0;
+
+	/*
+	 * one file of the log, mapped for as long as it is kept
+	 */
+	private static class Segment {
+		final long base;
+		final File file;
+		final MappedByteBuffer buf;
+		// where the next record goes
+		int end = 0;
+		// how far the records are all written, behind end while some are being copied in
+		volatile int committed = 0;
+		long lastWrite;
+		// guarded by the segment, once it is unmapped the mapping must not be touched
+		boolean unmapped = false;
+
+		Segment(long base, File file, MappedByteBuffer buf, long lastWrite){
+			this.base = base;
+			this.file = file;
+			this.buf = buf;
+			this.lastWrite = lastWrite;
+		}
+
+		/*
+		 * the record at pos is written, once the ones before it are
+		 */
+		synchronized void commit(int pos, int length){
+			boolean interrupted = false;
+			while(committed!=pos){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			committed = pos+length;
+			notifyAll();
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+
+		synchronized void force(){
+			if(!unmapped) buf.force();
+		}
+
+		synchronized void unmap(){
+			unmapped = true;
+			ActivityLog.unmap(buf);
+		}
+	}
+
+	public ActivityLog(File dir) throws IOException{
+		this.dir = dir;
+		if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("can not create "+dir);
+		long start = System.currentTimeMillis();
+		recover();
+		log.info("loaded "+index.size()+" activities from "+dir+" in "+(System.currentTimeMillis()-start)+" milliseconds");
+	}
+
+	/*
+	 * add an activity the clients are sent as frame
+	 */
+	public void append(String aid, boolean topic, ByteBuffer frame){
+		byte[] a = aid!=null ? aid.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		ByteBuffer line = frame.duplicate();
+		int length = HEADER+a.length+line.remaining();
+		if(a.length>Short.MAX_VALUE || length>Settings.getSegmentBytes()){
+			log.error("activity "+aid+" of "+line.remaining()+" bytes is too big for the activity log");
+			return;
+		}
+		long now = System.currentTimeMillis();
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(line.remaining()).putInt(0).putLong(now).put(topic ? TOPIC : 0).putShort((short) a.length).put(a).put(line);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(),8,length-8);
+		record.putInt(4,(int) crc.getValue());
+		record.flip();
+		Segment s;
+		Segment full = null;
+		int pos;
+		synchronized(this){
+			if(active==null || active.buf.capacity()-active.end<length){
+				full = active;
+				try {
+					roll(active==null ? 0 : active.base+active.buf.capacity());
+				} catch (IOException e) {
+					log.error("failed to start a new activity log segment: "+e);
+					return;
+				}
+			}
+			s = active;
+			pos = s.end;
+			s.end += length;
+			s.lastWrite = now;
+			if(a.length>0) index.put(aid,s.base+pos+length);
+		}
+		try {
+			ByteBuffer into = s.buf.duplicate();
+			into.position(pos);
+			into.put(record);
+		} finally {
+			s.commit(pos,length);
+		}
+		// sync only writes the active segment, so the one that filled up goes to disk here
+		if(full!=null) full.force();
+	}
+
+	/*
+	 * queue the activities after aid for a client, the newest of them if there are more
+	 * than it can be sent at once. Returns how many, nothing is sent for an aid the log
+	 * does not have, the client is too far behind or the activity never came this way.
+	 *
+	 * They are queued without holding the lock, then whatever was appended meanwhile,
+	 * until there is nothing more and attach is run under the lock. attach is where the
+	 * client starts being sent new activities, so anything appended after that reaches
+	 * the client after what it missed, and an activity appended before it can only be
+	 * sent to the client again after it, never lost. What it missed before uses no more
+	 * than half of the connection's queue, so queueing them never has to wait, but all
+	 * of what is appended meanwhile is sent however much there is
+	 */
+	public int replay(String aid, Connection con, Runnable attach){
+		int max = Math.min(Settings.getReplayMax(),Settings.getOutboundQueueSize()/2);
+		Long from;
+		synchronized(this){
+			from = index.get(aid);
+			if(from==null || max==0){
+				attach.run();
+				return 0;
+			}
+		}
+		ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+		long at = from;
+		int sent = 0;
+		int limit = max;
+		while(true){
+			synchronized(this){
+				at = collect(at,limit,frames);
+				limit = Integer.MAX_VALUE;
+				if(frames.isEmpty()){
+					attach.run();
+					return sent;
+				}
+			}
+			for(ByteBuffer frame : frames){
+				if(!con.writeFrame(frame)){
+					attach.run();
+					return sent;
+				}
+				sent++;
+			}
+			frames.clear();
+		}
+	}
+
+	/*
+	 * add the activities a client is sent from offset at on to frames, keeping the newest
+	 * max of them copied onto the heap, and return the offset it got to. It stops at a
+	 * record that is still being copied in, and the next call carries on from there
+	 */
+	private long collect(long at, int max, ArrayDeque<ByteBuffer> frames){
+		if(segments.isEmpty()) return at;
+		Long first = segments.floorKey(at);
+		// where it got to has been deleted since, carry on from the oldest there is
+		if(first==null){
+			first = segments.firstKey();
+			at = first;
+		}
+		for(Segment s : segments.tailMap(first).values()){
+			int pos = (int) Math.max(0,at-s.base);
+			int committed = s.committed;
+			while(pos<committed){
+				ByteBuffer r = s.buf.duplicate();
+				r.position(pos);
+				int line = r.getInt();
+				r.getInt();
+				r.getLong();
+				byte flags = r.get();
+				int alen = r.getShort();
+				int start = r.position()+alen;
+				if((flags&TOPIC)==0){
+					r.position(start);
+					r.limit(start+line);
+					frames.add(r.slice());
+					if(frames.size()>max) frames.poll();
+				}
+				pos = start+line;
+			}
+			at = s.base+pos;
+			if(committed<s.end) break;
+		}
+		// only the ones kept are copied, once the backlog has been cut down to max
+		for(int i=frames.size();i>0;i--){
+			ByteBuffer slice = frames.poll();
+			ByteBuffer copy = ByteBuffer.allocate(slice.remaining());
+			copy.put(slice);
+			copy.flip();
+			frames.add(copy);
+		}
+		return at;
+	}
+
+	/*
+	 * write what has been appended to disk
+	 */
+	public void sync(){
+		Segment s;
+		synchronized(this){
+			s = active;
+		}
+		if(s!=null) s.force();
+	}
+
+	/*
+	 * delete the oldest segments until the log is back inside its retention
+	 */
+	public synchronized void trim(){
+		long oldest = System.currentTimeMillis()-Settings.getRetainTime();
+		while(segments.size()>1){
+			Segment s = segments.firstEntry().getValue();
+			if(bytes<=Settings.getRetainBytes() && s.lastWrite>=oldest) break;
+			// a record is still being copied into it
+			if(s.committed<s.end) break;
+			segments.remove(s.base);
+			bytes -= s.buf.capacity();
+			forget(s);
+			s.unmap();
+			if(!s.file.delete()) log.error("failed to delete activity log segment "+s.file);
+			log.debug("deleted activity log segment "+s.file);
+		}
+	}
+
+	public void close(){
+		sync();
+	}
+
+	/*
+	 * take a segment's activities out of the index, leaving any that were appended
+	 * again in a later segment
+	 */
+	private void forget(Segment s){
+		int pos = 0;
+		while(pos<s.end){
+			ByteBuffer r = s.buf.duplicate();
+			r.position(pos);
+			int line = r.getInt();
+			r.position(pos+HEADER-2);
+			byte[] a = new byte[r.getShort()];
+			r.get(a);
+			pos = r.position()+line;
+			String aid = new String(a,StandardCharsets.UTF_8);
+			Long at = index.get(aid);
+			if(at!=null && at==s.base+pos) index.remove(aid);
+		}
+	}
+
+	/*
+	 * start writing a new segment
+	 */
+	private void roll(long base) throws IOException{
+		File file = new File(dir,"segment-"+base);
+		active = map(base,file,Settings.getSegmentBytes(),System.currentTimeMillis());
+		segments.put(base,active);
+		bytes += active.buf.capacity();
+	}
+
+	/*
+	 * let go of a mapping now, there is no public way to, and if none of these work it
+	 * goes when it is garbage collected as it would anyway
+	 */
+	private static void unmap(MappedByteBuffer buf){
+		try {
+			// java 9 on
+			Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+			Field field = unsafe.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe.getMethod("invokeCleaner",ByteBuffer.class).invoke(field.get(null),buf);
+		} catch (NoSuchMethodException e) {
+			// java 8 and before
+			try {
+				Method cleaner = buf.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object c = cleaner.invoke(buf);
+				if(c!=null) c.getClass().getMethod("clean").invoke(c);
+			} catch (Exception e2) {
+				log.debug("can not unmap an activity log segment: "+e2);
+			}
+		} catch (Exception e) {
+			log.debug("can not unmap an activity log segment: "+e);
+		}
+	}
+
+	private static Segment map(long base, File file, long size, long lastWrite) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file,"rw");
+		try {
+			// the mapping stays valid once the file is closed
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,size);
+			return new Segment(base,file,buf,lastWrite);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * map the segments that are there and find where each one ends
+	 */
+	private void recover() throws IOException{
+		File[] all = dir.listFiles();
+		if(all==null) return;
+		for(File f : all){
+			String name = f.getName();
+			if(!name.startsWith("segment-")) continue;
+			long base;
+			try {
+				base = Long.parseLong(name.substring("segment-".length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if(f.length()<HEADER || f.length()>Integer.MAX_VALUE){
+				log.error("activity log segment "+f+" is not a segment, ignoring it");
+				continue;
+			}
+			Segment s = map(base,f,f.length(),f.lastModified());
+			s.end = scan(s);
+			s.committed = s.end;
+			segments.put(base,s);
+			bytes += s.buf.capacity();
+		}
+		// carry on writing where the newest segment ends
+		if(!segments.isEmpty()) active = segments.lastEntry().getValue();
+	}
+
+	/*
+	 * index a segment's activities, returns where the valid records end
+	 */
+	private int scan(Segment s){
+		ByteBuffer r = s.buf.duplicate();
+		int pos = 0;
+		while(r.capacity()-pos>=HEADER){
+			r.position(pos);
+			int line = r.getInt();
+			int expected = r.getInt();
+			r.position(pos+HEADER-2);
+			int alen = r.getShort();
+			int length = HEADER+alen+line;
+			if(line<=0 || alen<0 || length>r.capacity()-pos) break;
+			byte[] record = new byte[length-8];
+			r.position(pos+8);
+			r.get(record);
+			CRC32 crc = new CRC32();
+			crc.update(record,0,record.length);
+			if((int) crc.getValue()!=expected) break;
+			if(alen>0) index.put(new String(record,HEADER-8,alen,StandardCharsets.UTF_8),s.base+pos+length);
+			pos += length;
+		}
+		return pos;
+	}
+}
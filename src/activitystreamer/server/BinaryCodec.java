@@ -0,0 +1,213 @@
+package activitystreamer.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * The compact encoding servers can agree to use on the links between them.
+ * A binary frame is a zero byte, which can never start a json line, then the
+ * length of the payload as a varint and then the payload:
+ *
+ *   command    one byte, the command's ordinal plus one, or zero followed by
+ *              the command's name as a string for commands we have no code for
+ *   fields     a tag byte per field, the field's index in Message, then its value,
+ *              a string is a varint length and utf-8 bytes, a tag with the high
+ *              bit set is a number and its value is a varint
+ *
+ * The activity is carried as the raw json it was in the original message, so it
+ * is never parsed or escaped on the way through. Fields Message has no slot for
+ * are not carried at all, no server reads them.
+ */
+public class BinaryCodec {
+	static final byte MAGIC = 0;
+	static final String NAME = "binary";
+	private static final int NUMBER = 0x80;
+	private static final Command[] COMMANDS = Command.values();
+
+	/*
+	 * the length of the payload of the binary frame that starts at pos, or -1 if
+	 * the length has not all arrived yet
+	 */
+	static int payloadLength(byte[] data, int pos, int limit){
+		int length = 0;
+		for(int shift=0,i=pos+1;i<limit;shift+=7,i++){
+			// anything past four bytes is bigger than any frame we accept
+			if(shift>21) return Integer.MAX_VALUE;
+			length |= (data[i] & 0x7f) << shift;
+			if((data[i] & 0x80)==0) return length;
+		}
+		return -1;
+	}
+
+	/*
+	 * the bytes before the payload, the magic byte and the length
+	 */
+	static int headerLength(int payloadLength){
+		return 1+varintLength(payloadLength);
+	}
+
+	/*
+	 * encode a message as a binary frame that can be shared between connections
+	 */
+	static ByteBuffer encode(Message m){
+		Output out = new Output();
+		Command command = m.getType();
+		if(command!=null){
+			out.write(command.ordinal()+1);
+		} else {
+			out.write(0);
+			out.writeString(m.getCommand());
+		}
+		for(int field=1;field<Message.FIELDS;field++){
+			if(field==Message.ACTIVITY || !m.has(field)) continue;
+			String value = m.getValue(field);
+			int number = (field==Message.LOAD || field==Message.PORT || field==Message.CAPACITY || field==Message.DEPTH) ? toInt(value) : -1;
+			if(number>=0){
+				out.write(field | NUMBER);
+				out.writeVarint(number);
+			} else {
+				out.write(field);
+				out.writeString(value);
+			}
+		}
+		if(m.has(Message.ACTIVITY)){
+			out.write(Message.ACTIVITY);
+			out.writeString(m.getRawActivity());
+		}
+		return frame(out.bytes,0,out.size);
+	}
+
+	/*
+	 * a frame for a payload exactly as it was received
+	 */
+	static ByteBuffer frame(byte[] payload, int offset, int length){
+		ByteBuffer frame = ByteBuffer.allocateDirect(headerLength(length)+length);
+		frame.put(MAGIC);
+		int v = length;
+		while(v>=0x80){
+			frame.put((byte) (v | 0x80));
+			v >>>= 7;
+		}
+		frame.put((byte) v);
+		frame.put(payload,offset,length);
+		frame.flip();
+		return frame.asReadOnlyBuffer();
+	}
+
+	/*
+	 * decode a payload into m, returns false if it is not a valid payload
+	 */
+	static boolean decode(byte[] payload, Message m){
+		m.clear(payload);
+		Input in = new Input(payload);
+		try {
+			int code = in.read();
+			if(code==0){
+				m.set(Message.COMMAND,in.readString());
+			} else if(code<=COMMANDS.length){
+				m.set(Message.COMMAND,COMMANDS[code-1].name());
+			} else {
+				return false;
+			}
+			while(in.pos<payload.length){
+				int tag = in.read();
+				int field = tag & ~NUMBER;
+				if(field<=Message.COMMAND || field>=Message.FIELDS) return false;
+				if((tag & NUMBER)!=0){
+					m.set(field,Integer.toString(in.readVarint()));
+				} else if(field==Message.ACTIVITY){
+					m.setActivity(in.readString());
+				} else {
+					m.set(field,in.readString());
+				}
+			}
+			return true;
+		} catch (ArrayIndexOutOfBoundsException e){
+			// ran off the end of the payload
+			return false;
+		}
+	}
+
+	private static int varintLength(int v){
+		int n = 1;
+		while(v>=0x80){
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/*
+	 * a plain non-negative decimal as an int, otherwise -1
+	 */
+	private static int toInt(String value){
+		if(value.isEmpty() || value.length()>9) return -1;
+		int n = 0;
+		for(int i=0;i<value.length();i++){
+			char c = value.charAt(i);
+			if(c<'0' || c>'9') return -1;
+			n = n*10+(c-'0');
+		}
+		// leading zeros would not survive the round trip
+		if(value.length()>1 && value.charAt(0)=='0') return -1;
+		return n;
+	}
+
+	private static class Output {
+		byte[] bytes = new byte[128];
+		int size = 0;
+
+		void write(int b){
+			if(size==bytes.length) bytes = Arrays.copyOf(bytes,size*2);
+			bytes[size++] = (byte) b;
+		}
+
+		void writeVarint(int v){
+			while(v>=0x80){
+				write(v | 0x80);
+				v >>>= 7;
+			}
+			write(v);
+		}
+
+		void writeString(String s){
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarint(b.length);
+			if(size+b.length>bytes.length) bytes = Arrays.copyOf(bytes,Math.max(bytes.length*2,size+b.length));
+			System.arraycopy(b,0,bytes,size,b.length);
+			size += b.length;
+		}
+	}
+
+	private static class Input {
+		final byte[] bytes;
+		int pos = 0;
+
+		Input(byte[] bytes){
+			this.bytes = bytes;
+		}
+
+		int read(){
+			return bytes[pos++] & 0xff;
+		}
+
+		int readVarint(){
+			int v = 0;
+			for(int shift=0;shift<32;shift+=7){
+				int b = read();
+				v |= (b & 0x7f) << shift;
+				if((b & 0x80)==0) return v;
+			}
+			throw new ArrayIndexOutOfBoundsException("varint too long");
+		}
+
+		String readString(){
+			int length = readVarint();
+			if(length<0 || pos+length>bytes.length) throw new ArrayIndexOutOfBoundsException("string past the end");
+			String s = new String(bytes,pos,length,StandardCharsets.UTF_8);
+			pos += length;
+			return s;
+		}
+	}
+}
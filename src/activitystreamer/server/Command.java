@@ -0,0 +1,57 @@
+package activitystreamer.server;
+
+import java.util.HashMap;
+
+/*
+ * The commands a server understands, each with the fields it can not do without.
+ * The decoder resolves a message's command to one of these once, and process
+ * uses its ordinal to pick the handler. The binary codec sends the ordinal as the
+ * command's code, so new commands only ever go on the end.
+ */
+public enum Command {
+	INVALID_MESSAGE(),
+	SERVER_ANNOUNCE(Message.ID,Message.LOAD,Message.HOSTNAME,Message.PORT),
+	AUTHENTICATE(Message.SECRET),
+	LOGOUT(),
+	ACTIVITY_BROADCAST(Message.ACTIVITY),
+	LOGIN(Message.USERNAME,Message.SECRET),
+	ACTIVITY_MESSAGE(Message.USERNAME,Message.SECRET,Message.ACTIVITY),
+	REGISTER(Message.USERNAME,Message.SECRET),
+	LOCK_REQUEST(Message.USERNAME,Message.SECRET),
+	LOCK_DENIED(Message.USERNAME,Message.SECRET),
+	LOCK_ALLOWED(Message.USERNAME,Message.SECRET,Message.SERVER),
+	AUTHENTICATION_FAIL(Message.INFO),
+	CODEC(),
+	REGISTER_CLAIM(Message.USERNAME,Message.SECRET,Message.ID,Message.SERVER),
+	CLAIM_DENIED(Message.USERNAME,Message.SERVER),
+	USER_REGISTERED(Message.USERNAME,Message.SECRET,Message.SERVER),
+	USER_SYNC(Message.USERS),
+	SERVER_DIGEST(Message.ID,Message.SERVERS),
+	SUBSCRIBE(Message.TOPIC),
+	UNSUBSCRIBE(Message.TOPIC),
+	FILTER(Message.FILTER);
+
+	private static final HashMap<String,Command> byName = new HashMap<String,Command>();
+	static {
+		for(Command c : values()){
+			byName.put(c.name(),c);
+		}
+	}
+
+	private final int[] required;
+
+	private Command(int... required){
+		this.required = required;
+	}
+
+	int[] getRequired(){
+		return required;
+	}
+
+	/*
+	 * returns null for a command we do not know
+	 */
+	public static Command of(String name){
+		return byName.get(name);
+	}
+}
@@ -0,0 +1,112 @@
+package activitystreamer.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import activitystreamer.util.Settings;
+
+/*
+ * Compresses what a connection writes once it has agreed to compression with the
+ * other side. Frames are queued uncompressed, so they can still be shared between
+ * connections, and the writer passes each batch through here on its way out.
+ *
+ * The switch is the START frame: everything queued before it goes out as it is,
+ * then the marker byte, then one deflate stream for the rest of the connection.
+ * The reader on the other side sees the marker at a frame boundary and inflates
+ * from there on. Both sides prime the stream with the same dictionary of protocol
+ * keys, so even the first few messages compress well.
+ *
+ * The stream is sync flushed after every frame or after every batch, depending on
+ * the flush policy, so nothing is ever held back waiting for more to compress.
+ */
+class Compressor {
+	static final byte MARKER = 1;
+	static final ByteBuffer START;
+	static final byte[] DICTIONARY = ("\"command\":\"AUTHENTICATE\"\"command\":\"SERVER_ANNOUNCE\"\"command\":\"LOCK_REQUEST\""
+			+"\"command\":\"LOCK_ALLOWED\"\"command\":\"LOCK_DENIED\"\"id\":\"\"load\":\"\"hostname\":\"\"port\":\"\"server\":\""
+			+"\"username\":\"\"secret\":\"ACTIVITY_BROADCASTACTIVITY_MESSAGE\\\"authenticated_user\\\":\\\""
+			+"{\"command\":\"ACTIVITY_BROADCAST\",\"activity\":\"{\\\"authenticated_user\\\":\\\"").getBytes(StandardCharsets.UTF_8);
+	static {
+		ByteBuffer start = ByteBuffer.allocateDirect(1);
+		start.put(MARKER);
+		start.flip();
+		START = start.asReadOnlyBuffer();
+	}
+
+	private final boolean flushEachFrame;
+	// made when START goes through, until then frames are passed on as they are
+	private Deflater deflater;
+	private byte[] in = new byte[8192];
+	private byte[] out = new byte[8192];
+	private int size;
+	// once the connection has closed the deflater is freed, guarded by this
+	private boolean ended = false;
+
+	Compressor(){
+		flushEachFrame = Settings.getCompressionFlush().equals("frame");
+	}
+
+	/*
+	 * encode a batch of frames the way they go on the wire, the buffer returned
+	 * is reused by the next call so it must have been written by then
+	 */
+	synchronized ByteBuffer encode(ByteBuffer[] frames, int count){
+		size = 0;
+		// closed, nothing more goes out
+		if(ended) return ByteBuffer.wrap(out,0,0);
+		for(int i=0;i<count;i++){
+			// frames can be shared with other connections, never move their position
+			ByteBuffer frame = frames[i].duplicate();
+			if(deflater==null){
+				int n = frame.remaining();
+				ensure(n);
+				frame.get(out,size,n);
+				size += n;
+				if(frames[i]==START){
+					deflater = new Deflater();
+					deflater.setDictionary(DICTIONARY);
+				}
+				continue;
+			}
+			while(frame.hasRemaining()){
+				int n = Math.min(frame.remaining(),in.length);
+				frame.get(in,0,n);
+				deflater.setInput(in,0,n);
+				while(!deflater.needsInput()){
+					deflate(Deflater.NO_FLUSH);
+				}
+			}
+			if(flushEachFrame) deflate(Deflater.SYNC_FLUSH);
+		}
+		if(deflater!=null && !flushEachFrame) deflate(Deflater.SYNC_FLUSH);
+		return ByteBuffer.wrap(out,0,size);
+	}
+
+	/*
+	 * deflate until the deflater has nothing more to give for this flush mode
+	 */
+	private void deflate(int flush){
+		while(true){
+			ensure(256);
+			int free = out.length-size;
+			int n = deflater.deflate(out,size,free,flush);
+			size += n;
+			if(n<free) return;
+		}
+	}
+
+	/*
+	 * free the deflater's native memory rather than leave it to finalization, can be
+	 * called from any thread once the connection is closed and more than once
+	 */
+	synchronized void end(){
+		ended = true;
+		if(deflater!=null) deflater.end();
+	}
+
+	private void ensure(int needed){
+		if(out.length-size<needed) out = Arrays.copyOf(out,Math.max(out.length*2,size+needed));
+	}
+}
@@ -1,81 +1,262 @@
 package activitystreamer.server;
 
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import activitystreamer.util.Settings;
+import activitystreamer.util.Threads;
 
 
-public class Connection extends Thread {
+public class Connection implements Runnable {
 	private static final Logger log = LogManager.getLogger();
+	// what each write to a server link carried, across every link
+	static final Histogram linkBatchFrames = new Histogram("frames");
+	static final Histogram linkBatchBytes = new Histogram("bytes");
 	private DataInputStream in;
 	private DataOutputStream out;
-	private BufferedReader inreader;
-	private PrintWriter outwriter;
-	private boolean open = false;
+	private FrameReader frames;
+	private volatile boolean open = false;
+	// a server link that agreed to use binary frames, everything else gets json
+	private volatile boolean binary = false;
+	// set once the link agreed to compression, the writer passes everything through it
+	private volatile Compressor compressor;
+	// a link to another server, its writes may wait for a batch to fill up
+	private volatile boolean serverLink = false;
+	// when anything last arrived, a server link that goes quiet for too long is dead
+	private volatile long lastRead = System.currentTimeMillis();
+	private volatile boolean spoken = false;
 	private Socket socket;
-	private boolean term=false;
+	private volatile boolean term=false;
+	// reused for every message read from this connection
+	private final Message message = new Message();
+	// messages waiting to be written, drained by the writer thread or the reactor
+	private OutboundQueue outbound;
+	private Thread reader;
+	private Thread writer;
+	// only used by the nio engine
+	private SocketChannel channel;
+	private Reactor reactor;
+	private SelectionKey key;
+	private ByteBuffer[] writing;
+	private int writingCount = 0;
+	private AtomicBoolean writeInterest;
+	// waiting for its batch window, until the reactor or a full batch releases it
+	private AtomicBoolean lingering;
+	private volatile long writeDeadline;
+	private AtomicBoolean closed;
+	private volatile boolean closeAfterFlush=false;
+	private SerialExecutor executor;
 	
 	Connection(Socket socket) throws IOException{
 		in = new DataInputStream(socket.getInputStream());
-	    out = new DataOutputStream(socket.getOutputStream());
-	    inreader = new BufferedReader( new InputStreamReader(in));
-	    outwriter = new PrintWriter(out, true);
+	    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),Settings.getWriteBufferSize()));
+	    frames = new FrameReader(in);
 	    this.socket = socket;
+	    outbound = new OutboundQueue();
 	    open = true;
-	    start();
+	    writer = Threads.newThread(new Runnable(){
+	    	public void run(){
+	    		writeLoop();
+	    	}
+	    },"writer-"+Settings.socketAddress(socket));
+	    writer.start();
 	}
 	
 	/*
-	 * returns true if the message was written, otherwise false
+	 * start reading from the connection on its own thread, only for the thread engine
+	 */
+	public void start(){
+		reader = Threads.newThread(this,"reader-"+Settings.socketAddress(socket));
+		reader.start();
+	}
+	
+	/*
+	 * a connection driven by one of the nio reactors rather than its own thread,
+	 * the reactor does all of the reading and calls Control.process for each line
+	 */
+	Connection(SocketChannel channel, Reactor reactor){
+		this.channel = channel;
+		this.reactor = reactor;
+		this.socket = channel.socket();
+		frames = new FrameReader(null);
+		outbound = new OutboundQueue();
+		writing = new ByteBuffer[Settings.getWriteBatch()];
+		writeInterest = new AtomicBoolean(false);
+		lingering = new AtomicBoolean(false);
+		closed = new AtomicBoolean(false);
+		executor = new SerialExecutor(reactor.getWorkers());
+		open = true;
+	}
+	
+	/*
+	 * returns true if the message was queued for writing, otherwise false
 	 */
 	public boolean writeMsg(String msg) {
+		if(binary) return write(new Frame(msg));
+		return writeFrame(ByteBuffer.wrap((msg+"\n").getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	/*
+	 * queue a message in whichever form this connection uses
+	 */
+	public boolean write(Frame frame) {
+		ByteBuffer encoded = binary ? frame.binary() : null;
+		return writeFrame(encoded!=null ? encoded : frame.json());
+	}
+	
+	/*
+	 * encode a message once so the same frame can be written to any number of connections
+	 */
+	public static ByteBuffer frame(String msg) {
+		byte[] bytes = (msg+"\n").getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocateDirect(bytes.length);
+		frame.put(bytes);
+		frame.flip();
+		return frame.asReadOnlyBuffer();
+	}
+	
+	/*
+	 * queue an already encoded frame, the frame is never modified so it can be shared
+	 * returns true if the frame was queued for writing, otherwise false
+	 */
+	public boolean writeFrame(ByteBuffer frame) {
 		if(open){
-			outwriter.println(msg);
-			outwriter.flush();
-			return true;	
+			if(outbound.offer(frame)){
+				if(channel!=null) reactor.wantWrite(this);
+				return true;
+			}
+			if(!outbound.isClosed()){
+				log.info("connection "+Settings.socketAddress(socket)+" is too slow, "+outbound.size()+" messages queued");
+				closeCon();
+			}
 		}
 		return false;
 	}
 	
+	/*
+	 * close once everything already queued has been written, for a thread engine
+	 * connection whose reader never started
+	 */
+	void flushAndClose(){
+		term=true;
+		open=false;
+		outbound.close();
+	}
+	
 	public void closeCon(){
+		if(channel!=null){
+			reactor.close(this);
+			return;
+		}
 		if(open){
 			log.info("closing connection "+Settings.socketAddress(socket));
 			try {
 				term=true;
-				inreader.close();
-				out.close();
+				// nothing more gets written, closing the reader closes the socket
+				outbound.close();
+				outbound.clear();
+				frames.close();
 			} catch (IOException e) {
 				// already closed?
 				log.error("received exception closing the connection "+Settings.socketAddress(socket)+": "+e);
 			}
+			endCompression();
 		}
 	}
 	
 	
 	public void run(){
+		// this thread only reads for this connection, it can wait for a slow one
+		OutboundQueue.allowBlocking();
 		try {
-			String data;
-			while(!term && (data = inreader.readLine())!=null){
-				term=Control.getInstance().process(this,data);
+			while(!term){
+				term=processNext();
 			}
 			log.debug("connection closed to "+Settings.socketAddress(socket));
 			Control.getInstance().connectionClosed(this);
-			in.close();
+			// the writer closes the socket once whatever is queued has gone out
+			outbound.close();
 		} catch (IOException e) {
 			log.error("connection "+Settings.socketAddress(socket)+" closed with exception: "+e);
 			Control.getInstance().connectionClosed(this);
+			outbound.close();
 		}
 		open=false;
+		// nothing more is read
+		frames.end();
+	}
+	
+	/*
+	 * read the next frame and process it, returns true if the connection should close,
+	 * which it also should at the end of the stream
+	 */
+	boolean processNext() throws IOException{
+		if(!frames.read()) return true;
+		if(frames.isBinary()) return Control.getInstance().process(this,frames.getPayload());
+		return Control.getInstance().process(this,frames.getLine());
+	}
+	
+	/*
+	 * the thread engine's writer, takes everything queued and writes it out
+	 * with one flush, until the queue is closed and empty
+	 */
+	private void writeLoop(){
+		ByteBuffer[] batch = new ByteBuffer[Settings.getWriteBatch()];
+		WritableByteChannel outchannel = Channels.newChannel(out);
+		try {
+			while(outbound.await(1000)){
+				if(isBatching()) outbound.awaitBatch(batch.length,Settings.getBatchBytes(),Settings.getBatchWindow());
+				int n = outbound.poll(batch,0);
+				if(serverLink) recordBatch(batch,n);
+				Compressor c = compressor;
+				if(c!=null){
+					outchannel.write(c.encode(batch,n));
+				} else {
+					for(int i=0;i<n;i++){
+						// frames can be shared with other connections, never move their position
+						outchannel.write(batch[i].duplicate());
+					}
+				}
+				Arrays.fill(batch,0,n,null);
+				out.flush();
+			}
+		} catch (IOException e) {
+			if(!term) log.error("connection "+Settings.socketAddress(socket)+" failed to write: "+e);
+			closeCon();
+		} catch (InterruptedException e) {
+			log.debug("writer for "+Settings.socketAddress(socket)+" interrupted");
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		Compressor c = compressor;
+		if(c!=null) c.end();
+	}
+	
+	/*
+	 * free the native memory compression holds on to, once the connection is closed
+	 */
+	void endCompression(){
+		frames.end();
+		Compressor c = compressor;
+		if(c!=null) c.end();
 	}
 	
 	public Socket getSocket() {
@@ -86,7 +267,147 @@ public class Connection extends Thread {
 		return open;
 	}
 	
-	public BufferedReader getInreader() {
-		return inreader;
+	public boolean isBinary() {
+		return binary;
+	}
+	
+	/*
+	 * from now on everything written to this connection goes out as binary frames
+	 */
+	void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+	
+	/*
+	 * compress everything queued after this, the writer switches when it gets to the marker
+	 */
+	void startCompression() {
+		if(compressor!=null) return;
+		compressor = new Compressor();
+		writeFrame(Compressor.START);
+	}
+	
+	Compressor getCompressor() {
+		return compressor;
+	}
+	
+	boolean isServerLink() {
+		return serverLink;
+	}
+	
+	void setServerLink(boolean serverLink) {
+		this.serverLink = serverLink;
+	}
+	
+	void touch() {
+		lastRead = System.currentTimeMillis();
+		spoken = true;
+	}
+	
+	/*
+	 * whether anything has arrived on the connection yet
+	 */
+	boolean hasSpoken() {
+		return spoken;
+	}
+	
+	long getLastRead() {
+		return lastRead;
+	}
+	
+	/*
+	 * a server link with a batch window, its writer waits for a batch to fill up
+	 */
+	boolean isBatching() {
+		return serverLink && Settings.getBatchWindow()>0;
+	}
+	
+	/*
+	 * count a batch taken off a server link's queue, before any compression
+	 */
+	static void recordBatch(ByteBuffer[] frames, int count) {
+		long bytes = 0;
+		for(int i=0;i<count;i++){
+			bytes += frames[i].remaining();
+		}
+		linkBatchFrames.record(count);
+		linkBatchBytes.record(bytes);
+	}
+	
+	Message getMessage() {
+		return message;
+	}
+	
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+	
+	/*
+	 * nio engine state, guarded by the reactor that owns the connection
+	 */
+	
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	SelectionKey getKey() {
+		return key;
+	}
+	
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+	
+	FrameReader getFrames() {
+		return frames;
+	}
+	
+	ByteBuffer[] getWriting() {
+		return writing;
+	}
+	
+	int getWritingCount() {
+		return writingCount;
+	}
+	
+	void setWritingCount(int writingCount) {
+		this.writingCount = writingCount;
+	}
+	
+	AtomicBoolean getWriteInterest() {
+		return writeInterest;
+	}
+	
+	AtomicBoolean getLingering() {
+		return lingering;
+	}
+	
+	long getWriteDeadline() {
+		return writeDeadline;
+	}
+	
+	void setWriteDeadline(long writeDeadline) {
+		this.writeDeadline = writeDeadline;
+	}
+	
+	SerialExecutor getExecutor() {
+		return executor;
+	}
+	
+	boolean isCloseAfterFlush() {
+		return closeAfterFlush;
+	}
+	
+	void setCloseAfterFlush(boolean closeAfterFlush) {
+		this.closeAfterFlush = closeAfterFlush;
+	}
+	
+	/*
+	 * returns true only for the one caller that gets to close the connection
+	 */
+	boolean markClosed() {
+		if(!closed.compareAndSet(false,true)) return false;
+		open = false;
+		return true;
 	}
 }
@@ -2,7 +2,10 @@ package activitystreamer.server;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,11 +14,12 @@ import activitystreamer.util.Settings;
 
 public class Control extends Thread {
 	private static final Logger log = LogManager.getLogger();
-	private static ArrayList<Connection> connections;
-	private static boolean term=false;
+	private static Set<Connection> connections;
+	private static volatile boolean term=false;
 	private static Listener listener;
+	private static NioListener nioListener;
 	
-	protected static Control control = null;
+	protected static volatile Control control = null;
 	
 	public static Control getInstance() {
 		if(control==null){
@@ -25,11 +29,24 @@ public class Control extends Thread {
 	}
 	
 	public Control() {
+		// connections made from the constructor can start processing before it returns,
+		// they must find this instance rather than make another
+		control = this;
 		// initialize the connections array
-		connections = new ArrayList<Connection>();
-		// start a listener
+		connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection,Boolean>());
+	}
+	
+	/*
+	 * start accepting connections, a subclass calls this once the rest of its state is
+	 * set up, as a connection can arrive the moment the listener starts
+	 */
+	protected void startListening(){
 		try {
-			listener = new Listener();
+			if(Settings.getIoEngine().equals("nio")){
+				nioListener = new NioListener();
+			} else {
+				listener = new Listener();
+			}
 		} catch (IOException e1) {
 			log.fatal("failed to startup a listening thread: "+e1);
 			System.exit(-1);
@@ -51,36 +68,92 @@ public class Control extends Thread {
 	/*
 	 * Processing incoming messages from the connection.
 	 * Return true if the connection should close.
+	 * 
+	 * Not synchronized: messages from one connection arrive in order on that
+	 * connection's own thread (or serial executor), different connections are
+	 * processed in parallel, so subclasses must keep their shared state thread safe.
 	 */
-	public synchronized boolean process(Connection con,String msg){
+	public boolean process(Connection con,String msg){
+		return true;
+	}
+	
+	/*
+	 * Processing the payload of a binary frame from a server link.
+	 * Return true if the connection should close.
+	 */
+	public boolean process(Connection con,byte[] payload){
 		return true;
 	}
 	
 	/*
 	 * The connection has been closed by the other party.
 	 */
-	public synchronized void connectionClosed(Connection con){
+	public void connectionClosed(Connection con){
 		if(!term) connections.remove(con);
 	}
 	
 	/*
 	 * A new incoming connection has been established, and a reference is returned to it
 	 */
-	public synchronized Connection incomingConnection(Socket s) throws IOException{
+	public Connection incomingConnection(Socket s) throws IOException{
 		log.debug("incomming connection: "+Settings.socketAddress(s));
 		Connection c = new Connection(s);
 		connections.add(c);
+		// the connection only starts reading once the handshake is done, so the
+		// first message can never be processed out of order with the rest
+		boolean close;
+		try {
+			close = handshake(c);
+		} catch (IOException e) {
+			c.closeCon();
+			connectionClosed(c);
+			throw e;
+		} catch (RuntimeException e) {
+			c.closeCon();
+			connectionClosed(c);
+			throw e;
+		}
+		if(close){
+			// whatever the handshake answered still goes out before the socket closes
+			c.flushAndClose();
+			connectionClosed(c);
+		} else {
+			// the handshake timeout was only for the first message
+			s.setSoTimeout(0);
+			c.start();
+		}
 		return c;
 		
 	}
 	
+	/*
+	 * Called for a new incoming connection before its thread starts reading.
+	 * Return true if the connection should close.
+	 */
+	protected boolean handshake(Connection con) throws IOException{
+		return false;
+	}
+	
+	/*
+	 * A new incoming connection has been accepted by the nio engine, the reactor
+	 * will read from it and call process for every message
+	 */
+	public Connection incomingConnection(SocketChannel sc, Reactor reactor) throws IOException{
+		log.debug("incomming connection: "+Settings.socketAddress(sc.socket()));
+		Connection c = new Connection(sc,reactor);
+		connections.add(c);
+		reactor.register(c);
+		return c;
+	}
+	
 	/*
 	 * A new outgoing connection has been established, and a reference is returned to it
 	 */
-	public synchronized Connection outgoingConnection(Socket s) throws IOException{
+	public Connection outgoingConnection(Socket s) throws IOException{
 		log.debug("outgoing connection: "+Settings.socketAddress(s));
 		Connection c = new Connection(s);
 		connections.add(c);
+		c.start();
 		return c;
 		
 	}
@@ -98,6 +171,7 @@ public class Control extends Thread {
 			}
 			if(!term){
 				log.debug("doing activity");
+				logQueues();
 				term=doActivity();
 			}
 			
@@ -107,18 +181,48 @@ public class Control extends Thread {
 		for(Connection connection : connections){
 			connection.closeCon();
 		}
-		listener.setTerm(true);
+		if(listener!=null) listener.setTerm(true);
+		if(nioListener!=null) nioListener.setTerm(true);
+		shutdown();
+	}
+	
+	/*
+	 * called once the connections are closed, for anything that must be put away before exiting
+	 */
+	protected void shutdown(){
 	}
 	
 	public boolean doActivity(){
 		return false;
 	}
 	
+	/*
+	 * report how far behind the writers are
+	 */
+	private void logQueues(){
+		int queued = 0;
+		int deepest = 0;
+		for(Connection connection : connections){
+			int depth = connection.getOutbound().size();
+			queued += depth;
+			if(depth>deepest) deepest = depth;
+		}
+		log.debug("outbound queues: "+queued+" messages queued, deepest "+deepest+", "
+				+OutboundQueue.getTotalDrops()+" dropped, "+OutboundQueue.getTotalDisconnects()+" slow connections disconnected");
+		log.debug("server link batches: "+Connection.linkBatchFrames+", "+Connection.linkBatchBytes);
+		log.debug("handshakes: "+(listener!=null ? listener.getHandshakes().getQueued() : 0)+" waiting, "+HandshakeStage.latency+", "
+				+HandshakeStage.getTimedOut()+" timed out, "+HandshakeStage.getRejected()+" rejected");
+	}
+	
 	public final void setTerm(boolean t){
 		term=t;
 	}
 	
-	public final ArrayList<Connection> getConnections() {
+	public final boolean isTerm(){
+		return term;
+	}
+	
+	public final Set<Connection> getConnections() {
 		return connections;
 	}
 }
@@ -1,41 +1,150 @@
 package activitystreamer.server;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import activitystreamer.util.Settings;
+import activitystreamer.util.Threads;
 
 
 
 public class ControlSolution extends Control {
 	private static final Logger log = LogManager.getLogger();
-	private HashSet<Connection> conToSer;
-	private HashSet<Connection> conToClient;
-	private HashMap<String,String> clientRecord;
-	private HashMap<String,Connection> registerLog;
-	private HashSet<String> serverIdSet;
-	private HashMap<Connection,HashSet<String>> lockAllowReply;
+	// all shared state is concurrent, process runs on many threads at once
+	private Set<Connection> conToSer;
+	// the server links other servers made to us, the ones max servers limits
+	private Set<Connection> accepted;
+	private Set<Connection> conToClient;
+	private UserStore clientRecord;
+	private ConcurrentMap<String,Connection> registerLog;
+	private Set<String> serverIdSet;
+	// flood registrations waiting for every server to answer, by request id
+	private ConcurrentMap<String,PendingRegistration> pending;
+	private AtomicLong nextRid;
+	private SeenCache seen;
+	// flooded messages are tagged with an id of our own and remembered, so on a mesh
+	// each is handled once however many links it comes in over
+	private AtomicLong nextAid;
+	private SeenFilter flooded;
+	private TimerWheel timers;
 	private String serverId;
-	private HashMap<String,String> freeServer;
-	private HashMap<Connection,String> loginLog;
+	private LoadTable loads;
+	private ConcurrentMap<Connection,String> loginLog;
+	// the other way round, so a login can tell if the user is already logged in
+	private ConcurrentMap<String,Connection> sessions;
+	// rate limits on activities, for each connection and for each user over all its connections
+	private ConcurrentMap<Connection,TokenBucket> connectionLimits;
+	private ConcurrentMap<String,TokenBucket> userLimits;
+	private AtomicLong limited;
+	// whether we last told the other servers we have no room
+	private AtomicBoolean saturated;
+	// which link leads towards each server we have heard announce itself
+	private ConcurrentMap<String,Connection> routes;
+	// the id of the server at the other end of each server link, "" if it did not say
+	private ConcurrentMap<Connection,String> neighbours;
+	// who owns each username when registrations are sharded
+	private HashRing ring;
+	// the link this server made into the tree, null for the root or while reattaching
+	private volatile Connection parent;
+	// the first announce on a new parent link is the parent's own
+	private volatile String parentId;
+	// links from the root of the tree, -1 until the parent says
+	private volatile int depth;
+	// whether this server has ever been linked into the tree
+	private volatile boolean attached = false;
+	private AtomicBoolean reattaching;
+	// with digest announces, the newest sequence number we have from each server
+	private ConcurrentMap<String,Long> announced;
+	// announces taken in since the last interval, waiting to be sent on with ours
+	private ConcurrentMap<String,Heard> heard;
+	private AtomicLong ownSeq;
+	// what we last announced and when, only the activity loop touches these
+	private long lastAnnounced;
+	private int lastLoad = -1;
+	private int lastDepth;
+	private String lastParent;
+	private long announceEvery;
+	private int lastTopics;
+	// the summary version we last sent and when, it only goes out when it changes or
+	// now and then for servers that were not there the last time
+	private int sentTopics = -1;
+	private long topicsSentAt;
+	// which of our clients want which topics, and whether a new summary is waiting to be announced
+	private Subscriptions subscriptions;
+	private AtomicBoolean summaryPending;
+	private ActivityFilters filters;
+	// what clients logging in again can catch up on, null if activities are not logged
+	private ActivityLog activities;
+	private static final long FIRST_BACKOFF = 250;
+	private static final long MAX_BACKOFF = 10000;
+	private static final long SUMMARY_DELAY = 100;
 	
-	JSONParser parser = new JSONParser();
+	/*
+	 * a flood registration, done when every server it is waiting for has allowed
+	 * it, or when its deadline passes without any server denying it
+	 */
+	private static class PendingRegistration {
+		final String username;
+		final String secret;
+		final Connection con;
+		final Set<String> waiting;
+		volatile TimerWheel.Timeout timeout;
+
+		PendingRegistration(String username, String secret, Connection con, Set<String> waiting){
+			this.username = username;
+			this.secret = secret;
+			this.con = con;
+			this.waiting = waiting;
+		}
+	}
+	
+	/*
+	 * an announce from a digest and the link it came in on, it is not sent back that way
+	 */
+	private static class Heard {
+		final ServerDigest.Entry entry;
+		final Connection from;
+
+		Heard(ServerDigest.Entry entry, Connection from){
+			this.entry = entry;
+			this.from = from;
+		}
+	}
+	
+	// one handler per command, indexed by the command's ordinal
+	private interface Handler {
+		boolean handle(Connection con, Message msg);
+	}
+	private final Handler[] handlers = new Handler[Command.values().length];
+	
+	// decoders keep state between calls, so every thread gets its own
+	private ThreadLocal<MessageDecoder> decoder = new ThreadLocal<MessageDecoder>(){
+		@Override
+		protected MessageDecoder initialValue(){
+			return new MessageDecoder();
+		}
+	};
 	
 	// since control and its subclasses are singleton, we get the singleton this way
 	public static ControlSolution getInstance() {
@@ -49,18 +158,51 @@ public class ControlSolution extends Control {
 		
 		super();
 		
-		conToSer = new HashSet<Connection>();
-		conToClient = new HashSet<Connection>();
-		clientRecord = new HashMap<String,String>();
-		registerLog = new HashMap<String,Connection>();
-		serverIdSet = new HashSet<String>();
-		lockAllowReply = new HashMap<Connection,HashSet<String>>();
-		freeServer = new HashMap<String,String>();
-		loginLog = new HashMap<Connection,String>();
+		conToSer = newSet();
+		accepted = newSet();
+		conToClient = newSet();
+		clientRecord = openUserStore();
+		activities = openActivityLog();
+		registerLog = new ConcurrentHashMap<String,Connection>();
+		serverIdSet = newSet();
+		pending = new ConcurrentHashMap<String,PendingRegistration>();
+		nextRid = new AtomicLong();
+		seen = new SeenCache(100000);
+		timers = new TimerWheel(100,512,"timers");
+		rotateSeen();
+		nextAid = new AtomicLong();
+		flooded = new SeenFilter(Settings.getDedupCapacity());
+		rotateFlooded();
+		// a server that missed three announces in a row is gone, but is kept in mind until
+		// any link it was behind has had time to time out. A digest server can be quiet for
+		// a lot longer, it is gone once it has missed its longest wait by three intervals
+		long interval = Settings.getActivityInterval();
+		long expiry = Settings.getAnnounce().equals("digest") ? Settings.getAnnounceMax()+3L*interval : 3L*interval;
+		loads = new LoadTable(Settings.getRedirectPolicy(),expiry,Math.max(expiry,Settings.getLinkTimeout()+3L*interval));
+		loginLog = new ConcurrentHashMap<Connection,String>();
+		sessions = new ConcurrentHashMap<String,Connection>();
+		connectionLimits = new ConcurrentHashMap<Connection,TokenBucket>();
+		userLimits = new ConcurrentHashMap<String,TokenBucket>();
+		limited = new AtomicLong();
+		saturated = new AtomicBoolean(false);
+		routes = new ConcurrentHashMap<String,Connection>();
+		neighbours = new ConcurrentHashMap<Connection,String>();
+		ring = new HashRing();
+		reattaching = new AtomicBoolean(false);
+		announced = new ConcurrentHashMap<String,Long>();
+		heard = new ConcurrentHashMap<String,Heard>();
+		ownSeq = new AtomicLong();
+		subscriptions = new Subscriptions();
+		summaryPending = new AtomicBoolean(false);
+		filters = new ActivityFilters();
+		depth = Settings.getRemoteHostname()==null ? 0 : -1;
 		//default username and password
-		clientRecord.put("anonymous","");
+		if(!clientRecord.matches("anonymous","")) clientRecord.put("anonymous","");
+		
+		registerHandlers();
 		
 		serverId = Settings.nextSecret();
+		ring.add(serverId);
 		
 		//show secret
 		log.info("sercet is "+serverId);
@@ -70,39 +212,210 @@ public class ControlSolution extends Control {
 		// start the server's activity loop
 		// it will call doActivity every few seconds
 		start();
+		// last, everything a new connection uses is set up
+		startListening();
+	}
+	
+	private static UserStore openUserStore(){
+		if(Settings.getUserStore().equals("log")){
+			try {
+				return new LogUserStore(new File(Settings.getUserDir()));
+			} catch (IOException e) {
+				log.fatal("failed to open the user store in "+Settings.getUserDir()+": "+e);
+				System.exit(-1);
+			}
+		}
+		return new MemoryUserStore();
+	}
+	
+	private static ActivityLog openActivityLog(){
+		if(Settings.getActivityLog().equals("disk")){
+			try {
+				return new ActivityLog(new File(Settings.getActivityDir()));
+			} catch (IOException e) {
+				log.fatal("failed to open the activity log in "+Settings.getActivityDir()+": "+e);
+				System.exit(-1);
+			}
+		}
+		return null;
+	}
+	
+	@Override
+	protected void shutdown(){
+		clientRecord.close();
+		if(activities!=null) activities.close();
+	}
+	
+	private void registerHandlers(){
+		handlers[Command.INVALID_MESSAGE.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return true; }
+		};
+		handlers[Command.SERVER_ANNOUNCE.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return serverAnnounce(con,msg); }
+		};
+		handlers[Command.AUTHENTICATE.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return authenticate(con,msg); }
+		};
+		handlers[Command.LOGOUT.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return logOut(con,msg); }
+		};
+		handlers[Command.ACTIVITY_BROADCAST.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return activityBroadcast(con,msg); }
+		};
+		handlers[Command.LOGIN.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return login(con,msg); }
+		};
+		handlers[Command.ACTIVITY_MESSAGE.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return activityMessage(con,msg); }
+		};
+		handlers[Command.REGISTER.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return register(con,msg); }
+		};
+		handlers[Command.LOCK_REQUEST.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return lockRequest(con,msg); }
+		};
+		handlers[Command.LOCK_DENIED.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return lockDenied(con,msg); }
+		};
+		handlers[Command.LOCK_ALLOWED.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return lockAllowed(con,msg); }
+		};
+		handlers[Command.AUTHENTICATION_FAIL.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return true; }
+		};
+		handlers[Command.CODEC.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return codec(con,msg); }
+		};
+		handlers[Command.REGISTER_CLAIM.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return registerClaim(con,msg); }
+		};
+		handlers[Command.CLAIM_DENIED.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return claimDenied(con,msg); }
+		};
+		handlers[Command.USER_REGISTERED.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return userRegistered(con,msg); }
+		};
+		handlers[Command.USER_SYNC.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return userSync(con,msg); }
+		};
+		handlers[Command.SERVER_DIGEST.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return serverDigest(con,msg); }
+		};
+		handlers[Command.SUBSCRIBE.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return subscribe(con,msg); }
+		};
+		handlers[Command.UNSUBSCRIBE.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return unsubscribe(con,msg); }
+		};
+		handlers[Command.FILTER.ordinal()] = new Handler(){
+			public boolean handle(Connection con, Message msg){ return filter(con,msg); }
+		};
+	}
+	
+	private static <T> Set<T> newSet(){
+		return Collections.newSetFromMap(new ConcurrentHashMap<T,Boolean>());
 	}
 	
 	/*
-	 * a new incoming connection
+	 * a new incoming connection, its first message is read before the connection
+	 * starts its own thread
 	 */
 	@Override
-	public Connection incomingConnection(Socket s) throws IOException{
-		
-		Connection con = super.incomingConnection(s);
+	protected boolean handshake(Connection con) throws IOException{
 	    
-		String data = con.getInreader().readLine();
-		
-		if(process(con, data)){
-			super.connectionClosed(con);
-		}
+		return con.processNext();
+	}
 	
+	/*
+	 * the nio engine never waits for a first message, so a connection that has not
+	 * sent one by the handshake timeout is closed from the timers instead
+	 */
+	@Override
+	public Connection incomingConnection(SocketChannel sc, Reactor reactor) throws IOException{
+		final Connection con = super.incomingConnection(sc,reactor);
+		timers.schedule(new Runnable(){
+			public void run(){
+				if(!con.hasSpoken() && con.isOpen()){
+					HandshakeStage.timedOut();
+					log.info("no handshake from "+Settings.socketAddress(con.getSocket())+" in "+Settings.getHandshakeTimeout()+" milliseconds, closing");
+					con.closeCon();
+				}
+			}
+		},Settings.getHandshakeTimeout());
 		return con;
 	}
 	
+	/*
+	 * link into the tree through the server we were told to, if that fails keep
+	 * trying in the background rather than giving up
+	 */
+	@Override
+	public void initiateConnection(){
+		// extra links to peers make a mesh, they are not part of the tree
+		for(InetSocketAddress peer : Settings.getPeers()){
+			try {
+				connect(peer.getHostString(),peer.getPort(),false);
+			} catch (IOException e) {
+				log.error("failed to make connection to peer "+peer.getHostString()+":"+peer.getPort()+" :"+e);
+			}
+		}
+		if(Settings.getRemoteHostname()==null) return;
+		try {
+			connect(Settings.getRemoteHostname(),Settings.getRemotePort(),true);
+		} catch (IOException e) {
+			log.error("failed to make connection to "+Settings.getRemoteHostname()+":"+Settings.getRemotePort()+" :"+e);
+			reattach();
+		}
+	}
+	
+	private void connect(String hostname, int port, boolean asParent) throws IOException{
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(hostname,port),Settings.getLinkTimeout());
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		link(s,asParent);
+	}
+	
 	/*
 	 * a new outgoing connection
 	 */
 	@Override
 	public Connection outgoingConnection(Socket s) throws IOException{
+		return link(s,true);
+	}
+	
+	/*
+	 * link to another server, either as our parent in the tree or as a peer
+	 */
+	@SuppressWarnings("unchecked")
+	private Connection link(Socket s, boolean asParent) throws IOException{
 		Connection con = super.outgoingConnection(s);
+		if(asParent){
+			parentId = null;
+			parent = con;
+			attached = true;
+		}
 		/*
 		 * do additional things here
 		 */
 		JSONObject response = new JSONObject();
 		response.put("command","AUTHENTICATE");
 		response.put("secret",Settings.getSecret());
-		con.writeMsg(response.toString());
+		response.put("id",serverId);
+		// a server that understands these answers with CODEC, any other ignores them
+		if(Settings.getServerCodec().equals(BinaryCodec.NAME)) response.put("codec",BinaryCodec.NAME);
+		if(!Settings.getCompression().equals("none")) response.put("compression",Settings.getCompression());
+		// ask for the users we are missing, a server that does not sync ignores it
+		response.put("digest",UserSync.toHex(UserSync.digest(clientRecord)));
+		// a server link before anything is sent, so the answer always finds it
 		conToSer.add(con);
+		con.setServerLink(true);
+		con.writeMsg(response.toString());
+		// what we know goes straight across, rather than as it changes
+		if(Settings.getAnnounce().equals("digest")) con.writeMsg(fullDigest());
 		return con;
 	}
 	
@@ -113,12 +426,27 @@ public class ControlSolution extends Control {
 	@Override
 	public void connectionClosed(Connection con){
 		
+		connectionLimits.remove(con);
 		if(conToClient.contains(con)){
 			conToClient.remove(con);
-			loginLog.remove(con);
+			String username = loginLog.remove(con);
+			if(username!=null && sessions.remove(username,con)) userLimits.remove(username);
+			if(subscriptions.remove(con)) summaryChanged();
+			filters.remove(con);
 		}
 		else{
 			conToSer.remove(con);
+			accepted.remove(con);
+			neighbours.remove(con);
+			// the servers behind the link are gone until they announce themselves another way
+			for(Map.Entry<String,Connection> route : routes.entrySet()){
+				if(route.getValue()==con && routes.remove(route.getKey(),con)) forgetServer(route.getKey());
+			}
+			if(con==parent && !isTerm()){
+				parent = null;
+				log.info("lost the link to our parent, reattaching");
+				reattach();
+			}
 		}
 		super.connectionClosed(con);
 	}
@@ -129,102 +457,53 @@ public class ControlSolution extends Control {
 	 * return true if the connection should be closed, false otherwise
 	 */
 	@Override
-	public synchronized boolean process(Connection con,String msg){
+	public boolean process(Connection con,String msg){
 		
 		log.debug(msg);
-		try{
 			
-			JSONObject obj = (JSONObject) parser.parse(msg);
+		Message obj = con.getMessage();
+		if(!decoder.get().decode(msg,obj)){
+			log.error("failed to parse message: "+msg);
+			return false;
+		}
+		
+		return handle(con,obj);
+	}
+	
+	/*
+	 * process the payload of a binary frame from a server link
+	 */
+	@Override
+	public boolean process(Connection con,byte[] payload){
+		
+		Message obj = con.getMessage();
+		if(!BinaryCodec.decode(payload,obj)){
+			log.error("failed to parse binary message of "+payload.length+" bytes");
+			return false;
+		}
+		
+		if(log.isDebugEnabled()) log.debug(obj.getSource());
+		
+		return handle(con,obj);
+	}
+	
+	private boolean handle(Connection con, Message obj){
+		
+		con.touch();
+		
+		if(!obj.has(Message.COMMAND)){
 			
-			if(!obj.containsKey("command")){
-				
-				return invalidMessage(con,"no command");
-				
-			}
-
-			Object command = obj.get("command");	
-			switch (command.toString()) {
+			return invalidMessage(con,"no command");
 			
-				case "INVALID_MESSAGE":
-					
-					return true;
-					
-				case "SERVER_ANNOUNCE":
-					
-					if(!obj.containsKey("id")) return invalidMessage(con,"no id");
-					if(!obj.containsKey("load")) return invalidMessage(con,"no load");
-					if(!obj.containsKey("hostname")) return invalidMessage(con,"no hostname");
-					if(!obj.containsKey("port")) return invalidMessage(con,"no port");
-					return serverAnnounce(con,obj);
-					
-				case "AUTHENTICATE":
-					
-					if(!obj.containsKey("secret")) return invalidMessage(con,"no secret");
-					return authenticate(con,obj);
-					
-				case "LOGOUT":
-					
-					return logOut(con,obj);
-					
-				case "ACTIVITY_BROADCAST":
-					
-					if(!obj.containsKey("activity")) return invalidMessage(con,"no activity");
-					return activityBroadcast(con,obj);
-
-				case "LOGIN" :
-					
-					if(!obj.containsKey("username")) return invalidMessage(con,"no username");
-					if(!obj.containsKey("secret")) return invalidMessage(con,"no secret");
-					log.info(conToClient.size());
-					return login(con,obj);
-					
-				case "ACTIVITY_MESSAGE":
-					
-					if(!obj.containsKey("username")) return invalidMessage(con,"no username");
-					if(!obj.containsKey("secret")) return invalidMessage(con,"no secret");
-					if(!obj.containsKey("activity")) return invalidMessage(con,"no activity");
-					return activityMessage(con,obj);
-					
-				case "REGISTER":
-					
-					if(!obj.containsKey("username")) return invalidMessage(con,"no username");
-					if(!obj.containsKey("secret")) return invalidMessage(con,"no secret");
-					return register(con,obj);
-					
-				case "LOCK_REQUEST":
-					
-					if(!obj.containsKey("username")) return invalidMessage(con,"no username");
-					if(!obj.containsKey("secret")) return invalidMessage(con,"no secret");
-					return lockRequest(con,obj);
-					
-				case "LOCK_DENIED":
-					
-					if(!obj.containsKey("username")) return invalidMessage(con,"no username");
-					if(!obj.containsKey("secret")) return invalidMessage(con,"no secret");
-					return lockDenied(con,obj);
-					
-				case "LOCK_ALLOWED":
-					
-					if(!obj.containsKey("username")) return invalidMessage(con,"no username");
-					if(!obj.containsKey("secret")) return invalidMessage(con,"no secret");
-					return lockAllowed(con,obj);
-					
-				case "AUTHENTICATION_FAIL":
-					
-					if(!obj.containsKey("info")) return invalidMessage(con,"no info");
-					return true;
-					
-				default:
-					
-					return invalidMessage(con,"invalidMessage");
-					
-				}
-				
-		}
-		catch (ParseException e) {
-			e.printStackTrace();
 		}
-		return false;
+		
+		Command command = obj.getType();
+		if(command==null) return invalidMessage(con,"invalidMessage");
+		
+		String invalid = obj.validate();
+		if(invalid!=null) return invalidMessage(con,invalid);
+		
+		return handlers[command.ordinal()].handle(con,obj);
 	}
 
 	
@@ -236,30 +515,104 @@ public class ControlSolution extends Control {
 	@Override
 	public boolean doActivity(){
 		
+		if(Settings.getAnnounce().equals("digest")){
+			sendDigests();
+		}
+		else{
+			// to every link, the tree's or not, as it is also how a neighbour knows the link is alive
+			broadcast(conToSer,null,new Frame(announce(topicsToSend())));
+		}
+		
+		// every neighbour announces each interval, one that has gone quiet is dead
+		long oldest = System.currentTimeMillis()-Settings.getLinkTimeout();
+		for(Connection c : conToSer){
+			if(c.getLastRead()<oldest){
+				log.info("no message from server "+Settings.socketAddress(c.getSocket())+" for "+Settings.getLinkTimeout()+" milliseconds, closing the link");
+				c.closeCon();
+			}
+		}
+		saturated.set(saturated(conToClient.size()));
+		// a server that stopped announcing no longer owns usernames or holds up registrations
+		for(String id : serverIdSet){
+			if(!loads.isLive(id)) forgetServer(id);
+		}
+		if(activities!=null){
+			activities.sync();
+			activities.trim();
+		}
+		log.debug(limited.get()+" activities rate limited, "+conToClient.size()+" clients, "+conToSer.size()+" server links");
+
+		return false;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private String announce(long[] topics){
 		JSONObject response = new JSONObject();
 		response.put("command","SERVER_ANNOUNCE");
 		response.put("id",serverId);
-		String load = Integer.toString(conToClient.size());
-		response.put("load",load);
+		response.put("aid",newAid());
+		response.put("load",Integer.toString(conToClient.size()));
 		response.put("hostname",Settings.getLocalHostname() );
 		response.put("port",Settings.getLocalPort()+"");
-		
-		for(Connection c : conToSer){
-			c.writeMsg(response.toString());
-		}
+		response.put("capacity",Integer.toString(announcedCapacity()));
+		if(depth>=0) response.put("depth",Integer.toString(depth));
+		if(parent!=null && parentId!=null) response.put("parent",parentId);
+		if(topics!=null) response.put("topics",TopicSummary.toHex(topics));
+		return response.toString();
+	}
 
-		return false;
+	/*
+	 * our summary if it changed since we last sent it, or has not been sent for as long
+	 * as we ever go between announces, otherwise null and the announce goes without it.
+	 * Every server keeps the last summary it got from us, so it is not sent every time
+	 */
+	private synchronized long[] topicsToSend(){
+		long now = System.currentTimeMillis();
+		int version = subscriptions.getVersion();
+		if(version==sentTopics && now-topicsSentAt<Settings.getAnnounceMax()) return null;
+		sentTopics = version;
+		topicsSentAt = now;
+		return subscriptions.getSummary();
 	}
     
-	public boolean authenticate(Connection con, JSONObject msg){
+	@SuppressWarnings("unchecked")
+	public boolean authenticate(Connection con, Message msg){
 		
-		Object temp = msg.get("secret");
-		String secret = temp.toString();
+		String secret = msg.getSecret();
 		
 		if(secret.equals(Settings.getSecret())){
+			// our own links to a parent or peers do not count
+			if(Settings.getMaxServers()>0 && accepted.size()>=Settings.getMaxServers()){
+				return failMessage(con,"AUTHENTICATION_FAIL","this server takes no more server links");
+			}
 			if(!conToSer.contains(con)){
+				con.setServerLink(true);
+				neighbours.put(con,msg.has(Message.ID) ? msg.getId() : "");
+				// agree to whatever the other server offered that we want too,
+				// and switch to it once the answer is queued
+				boolean binary = BinaryCodec.NAME.equals(msg.getCodec()) && Settings.getServerCodec().equals(BinaryCodec.NAME);
+				boolean compress = msg.has(Message.COMPRESSION) && msg.getCompression().equals(Settings.getCompression())
+						&& !Settings.getCompression().equals("none");
+				if(binary || compress){
+					JSONObject response = new JSONObject();
+					response.put("command","CODEC");
+					if(binary) response.put("codec",BinaryCodec.NAME);
+					if(compress) response.put("compression",Settings.getCompression());
+					con.writeMsg(response.toString());
+					con.setBinary(binary);
+					if(compress) con.startCompression();
+				}
+				// our own announce goes first, before anything forwarded from other
+				// servers, so the new server knows which one is its parent
+				con.writeMsg(Settings.getAnnounce().equals("digest") ? fullDigest() : announce(subscriptions.getSummary()));
 				//key the log
+				accepted.add(con);
 				conToSer.add(con);
+				if(msg.has(Message.DIGEST)){
+					long[] digest = UserSync.fromHex(msg.getDigest());
+					if(digest==null) return invalidMessage(con,"digest is not valid");
+					sendUsers(con,digest);
+				}
 				return false;
 			}
 			else{
@@ -272,33 +625,83 @@ public class ControlSolution extends Control {
 	}
 	
 	
-	public boolean login(Connection con, JSONObject msg){
+	/*
+	 * the server we authenticated with agreed to the codec or compression we offered
+	 */
+	public boolean codec(Connection con, Message msg){
+		
+		if(!conToSer.contains(con)){
+			return invalidMessage(con,"codec from non-authourised server");
+		}
+		
+		if(BinaryCodec.NAME.equals(msg.getCodec()) && Settings.getServerCodec().equals(BinaryCodec.NAME)){
+			con.setBinary(true);
+		}
+		if(msg.has(Message.COMPRESSION) && msg.getCompression().equals(Settings.getCompression())
+				&& !Settings.getCompression().equals("none")){
+			con.startCompression();
+		}
+		return false;
+	}
+	
+	public boolean login(Connection con, Message msg){
 		
-		Object username = msg.get("username");
-		Object secret = msg.get("secret");
+		String usernameS = msg.getUsername();
+		String secretS = msg.getSecret();
 		
-		String usernameS = username.toString();
-		String secretS = secret.toString();
+		log.info(conToClient.size());
 		
-		if(loginLog.containsValue(usernameS)){
+		if(sessions.containsKey(usernameS)){
 			return failMessage(con,"LOGIN_FALLED","already login in");
 		}
 		
 		//if there exist such user
-		if(clientRecord.containsKey(usernameS)){
-			if(clientRecord.get(usernameS).equals(secretS)){
-				// if the server with least load has 2 clients less than this server 
-				if(!freeServer.isEmpty()){
-					if((conToClient.size() - Integer.parseInt(freeServer.get("load")) + 1) > 2){
-						
+		if(clientRecord.contains(usernameS)){
+			if(clientRecord.matches(usernameS,secretS)){
+				int load = conToClient.size();
+				boolean full = Settings.getMaxClients()>0 && load>=Settings.getMaxClients();
+				// past the shedding point any server with room takes new clients off us
+				boolean shedding = saturated(load);
+				// if the server the policy picks has 2 clients less than this server,
+				// counted relative to capacity
+				LoadTable.Entry free = loads.select();
+				if(free!=null){
+					long ours = (long) (load+1)*free.getInfo().getCapacity();
+					long theirs = (long) (free.getLoad()+2)*Settings.getCapacity();
+					if(ours > theirs || shedding && free.getLoad()<free.getInfo().getCapacity()){
+						free.redirected();
 						successMessage(con,"LOGIN_SUCCESS","logged in as user  "+ usernameS);
-						return redirect(con,"REDIRECT",Integer.parseInt(freeServer.get("load")));
+						return redirect(con,"REDIRECT",free.getInfo());
 						
 					}
 				}
-				conToClient.add(con);
+				if(full){
+					return failMessage(con,"LOGIN_FALLED","server is full");
+				}
+				// another connection may have logged in as the user since the check above
+				if(sessions.putIfAbsent(usernameS,con)!=null){
+					return failMessage(con,"LOGIN_FALLED","already login in");
+				}
 				loginLog.put(con, usernameS);
-				return successMessage(con,"LOGIN_SUCCESS","logged in as user  "+ usernameS);
+				successMessage(con,"LOGIN_SUCCESS","logged in as user  "+ usernameS);
+				// a client back from a redirect or a dropped connection catches up on what it missed
+				// before it is sent new activities
+				if(activities!=null && msg.has(Message.RESUME)){
+					final Connection client = con;
+					int sent = activities.replay(msg.getResume(),con,new Runnable(){
+						public void run(){
+							conToClient.add(client);
+						}
+					});
+					log.debug("sent "+sent+" missed activities to "+usernameS);
+				}
+				else{
+					conToClient.add(con);
+				}
+				// tell the other servers straight away rather than have them send us clients
+				// until our next announce
+				if(saturated(conToClient.size()) && saturated.compareAndSet(false,true)) announceNow();
+				return false;
 			}
 			else{
 				return failMessage(con,"LOGIN_FALLED","secret not match");
@@ -310,35 +713,46 @@ public class ControlSolution extends Control {
 		
 	}
 	
-	public boolean activityMessage(Connection con, JSONObject msg){
-		
-		Object username = msg.get("username");
-		Object secret = msg.get("secret");
-		JSONObject activity = (JSONObject) msg.get("activity");
+	@SuppressWarnings("unchecked")
+	public boolean activityMessage(Connection con, Message msg){
 		
-		String usernameS = username.toString();
-		String secretS = secret.toString();
+		String usernameS = msg.getUsername();
+		String secretS = msg.getSecret();
 		
-		if(clientRecord.containsKey(usernameS)&&clientRecord.get(usernameS).equals(secretS)){
+		if(secretS!=null && clientRecord.matches(usernameS,secretS)){
+			
+			// before any work goes into the activity, so a client over its rate costs little
+			if(!admit(con,usernameS)){
+				limited.incrementAndGet();
+				log.debug("rate limited an activity from "+usernameS+" on "+Settings.socketAddress(con.getSocket()));
+				return false;
+			}
 			
 			JSONObject response = new JSONObject();
 			response.put("command","ACTIVITY_BROADCAST");
+			String aid = newAid();
+			response.put("aid",aid);
 			//response.put("authenticated_user", usernameS);
-			activity.put("authenticated_user", usernameS);
-			String activityS = activity.toString();
+			String activityS = authenticatedActivity(msg.getRawActivity(),usernameS);
 			response.put("activity",activityS);
+			String topic = msg.getTopic();
+			if(topic!=null) response.put("topic",topic);
 			
-			//broadcast to every server
-			for(Connection c : conToSer){
-				c.writeMsg(response.toString());
+			Frame frame = new Frame(response.toString());
+			
+			if(activities!=null) activities.append(aid,topic!=null,frame.json());
+			
+			if(topic!=null){
+				forwardTopic(null,frame,topic);
+				deliver(subscriptions.subscribers(topic),con,frame,activityS,true);
+				return false;
 			}
 			
+			//broadcast to every server
+			flood(null,frame);
+			
 			//broadcast to every client(no including the one send this act)
-			for(Connection c : conToClient){
-				if(!c.equals(con)){
-					c.writeMsg(response.toString());
-				}
-			}
+			deliver(conToClient,con,frame,activityS,true);
 			
 			return false;
 		}
@@ -347,38 +761,239 @@ public class ControlSolution extends Control {
 		}
 	}
 	
-	public boolean serverAnnounce(Connection con, JSONObject msg){
+	/*
+	 * whether we are full or past the shedding point, and want no more clients
+	 */
+	private static boolean saturated(int load){
+		return Settings.getMaxClients()>0 && load>=Settings.getMaxClients()
+				|| Settings.getShedLoad()>0 && load>=Settings.getShedLoad();
+	}
+	
+	/*
+	 * the capacity we tell other servers, a saturated server says it has no room left
+	 */
+	private int announcedCapacity(){
+		int load = conToClient.size();
+		return saturated(load) ? Math.max(1,load) : Settings.getCapacity();
+	}
+	
+	/*
+	 * announce ourselves to every link now, outside the activity interval
+	 */
+	private void announceNow(){
+		if(Settings.getAnnounce().equals("digest")){
+			List<ServerDigest.Entry> own = Collections.singletonList(new ServerDigest.Entry(self(topicsToSend()),ownSeq.incrementAndGet()));
+			broadcast(conToSer,null,new Frame(digest(own)));
+		}
+		else{
+			broadcast(conToSer,null,new Frame(announce(topicsToSend())));
+		}
+	}
+	
+	/*
+	 * take a token from the connection's bucket and the user's, whichever limits are on
+	 */
+	private boolean admit(Connection con, String username){
+		double rate = Settings.getActivityRate();
+		if(rate>0 && !bucket(connectionLimits,con).take(rate,Settings.getActivityBurst())) return false;
+		rate = Settings.getUserRate();
+		return rate<=0 || bucket(userLimits,username).take(rate,Settings.getUserBurst());
+	}
+	
+	private static <K> TokenBucket bucket(ConcurrentMap<K,TokenBucket> buckets, K key){
+		TokenBucket bucket = buckets.get(key);
+		if(bucket==null){
+			TokenBucket fresh = new TokenBucket();
+			bucket = buckets.putIfAbsent(key,fresh);
+			if(bucket==null) bucket = fresh;
+		}
+		return bucket;
+	}
+	
+	/*
+	 * add the authenticated user to an activity without parsing the whole activity,
+	 * only an activity that already claims a user has to be parsed so ours replaces it
+	 */
+	@SuppressWarnings("unchecked")
+	private String authenticatedActivity(String activity, String username){
+		if(activity.contains("\"authenticated_user\"")){
+			try {
+				JSONObject obj = (JSONObject) new JSONParser().parse(activity);
+				obj.put("authenticated_user",username);
+				return obj.toString();
+			} catch (ParseException e) {
+				log.error("failed to parse activity: "+activity);
+			}
+		}
+		String body = activity.substring(1,activity.lastIndexOf('}')).trim();
+		String user = "\"authenticated_user\":\""+JSONValue.escape(username)+"\"";
+		if(body.isEmpty()) return "{"+user+"}";
+		return "{"+body+","+user+"}";
+	}
+	
+	public boolean serverAnnounce(Connection con, Message msg){
 		
 		if(!conToSer.contains(con)){
 			invalidMessage(con,"recive boardcast from non-authourised server");
 			return true;
 		}
 		
-		// record the sever who has the least load
-		if(freeServer.isEmpty()){
-			freeServer = (HashMap<String,String>)msg;
-		}
-		if(Integer.parseInt(freeServer.get("load")) > Integer.parseInt(msg.get("load").toString())){
-			freeServer = (HashMap<String,String>)msg;
+		// a copy that came round another way is older news than the first
+		if(!firstFlood(msg)) return false;
+		
+		// on a link we made the first announce is from the server we linked to
+		neighbours.putIfAbsent(con,msg.getId());
+		if(con==parent && parentId==null) parentId = msg.getId();
+		// record every server's load, a server that does not say its capacity is taken to have ours
+		int capacity = msg.getCapacity()>0 ? msg.getCapacity() : Settings.getCapacity();
+		// an announce that does not say what topics it wants, or says it badly, leaves them as they were
+		long[] topics = msg.has(Message.TOPICS) ? TopicSummary.fromHex(msg.getTopics()) : null;
+		learnServer(con,new ServerInfo(msg.getId(),msg.getHostname(),msg.getPort(),msg.getLoad(),capacity,msg.getDepth(),msg.getParent(),topics));
+		
+		flood(con,Frame.of(msg));
+		
+		return false;
+	}
+	
+	/*
+	 * take in what a server announced, it came in over con
+	 */
+	private void learnServer(Connection con, ServerInfo info){
+		if(info.getTopics()==null){
+			ServerInfo known = loads.get(info.getId());
+			if(known!=null && known.getTopics()!=null) info = info.withTopics(known.getTopics());
 		}
+		loads.update(info);
+		// we are one further from the root than our parent
+		if(con==parent && info.getId().equals(parentId) && info.getDepth()>=0) depth = info.getDepth()+1;
 		//keep the record of serverID 
-		Object id = msg.get("id");
-		String idS = id.toString();
+		String idS = info.getId();
+		
+		serverIdSet.add(idS);
+		routes.put(idS,con);
+		ring.add(idS);
+	}
+	
+	/*
+	 * take a server off the ring and out of the servers registrations wait for, its next
+	 * announce puts it back
+	 */
+	private void forgetServer(String id){
+		if(serverIdSet.remove(id)) log.debug("forgetting server "+id);
+		ring.remove(id);
+	}
+	
+	public boolean serverDigest(Connection con, Message msg){
 		
-		if(!serverIdSet.contains(idS)){
-			serverIdSet.add(idS);
+		if(!conToSer.contains(con)){
+			return invalidMessage(con,"unau server");
 		}
 		
+		List<ServerDigest.Entry> entries = ServerDigest.parse(msg.getServers());
+		if(entries==null) return invalidMessage(con,"servers is not valid");
+		neighbours.putIfAbsent(con,msg.getId());
+		if(con==parent && parentId==null) parentId = msg.getId();
+		for(ServerDigest.Entry e : entries){
+			String idS = e.info.getId();
+			if(idS.equals(serverId) || !newer(idS,e.seq)) continue;
+			learnServer(con,e.info);
+			heard.put(idS,new Heard(e,con));
+		}
+		return false;
+	}
+	
+	/*
+	 * record seq as the newest from a server, unless we already have it or a newer one
+	 */
+	private boolean newer(String id, long seq){
+		while(true){
+			Long prev = announced.get(id);
+			if(prev==null){
+				if(announced.putIfAbsent(id,seq)==null) return true;
+			}
+			else if(prev>=seq){
+				return false;
+			}
+			else if(announced.replace(id,prev,seq)){
+				return true;
+			}
+		}
+	}
+	
+	/*
+	 * send each link the announces that came in since the last interval, with ours if our
+	 * load has moved or we have been quiet for too long. The steadier our load the longer
+	 * we go between announces, up to the most the settings allow. A link with nothing new
+	 * still gets an empty digest, it is how the other end knows the link is alive
+	 */
+	private void sendDigests(){
+		long now = System.currentTimeMillis();
+		int load = conToClient.size();
+		String parentNow = parent!=null ? parentId : null;
+		boolean moved = lastLoad<0 || Math.abs(load-lastLoad)>=Settings.getAnnounceDelta() || depth!=lastDepth
+				|| (parentNow==null ? lastParent!=null : !parentNow.equals(lastParent)) || subscriptions.getVersion()!=lastTopics;
+		ServerDigest.Entry own = null;
+		if(moved || now-lastAnnounced>=announceEvery){
+			announceEvery = moved ? Settings.getActivityInterval() : Math.min(announceEvery*2,Settings.getAnnounceMax());
+			lastAnnounced = now;
+			lastLoad = load;
+			lastDepth = depth;
+			lastParent = parentNow;
+			lastTopics = subscriptions.getVersion();
+			own = new ServerDigest.Entry(self(topicsToSend()),ownSeq.incrementAndGet());
+		}
+		List<Heard> news = new ArrayList<Heard>();
+		for(Map.Entry<String,Heard> h : heard.entrySet()){
+			if(heard.remove(h.getKey(),h.getValue())) news.add(h.getValue());
+		}
 		for(Connection c : conToSer){
-			if(!c.equals(con)){
-			c.writeMsg(msg.toString());
+			List<ServerDigest.Entry> entries = new ArrayList<ServerDigest.Entry>();
+			if(own!=null) entries.add(own);
+			if(floodsOver(c)){
+				for(Heard h : news){
+					if(h.from!=c) entries.add(h.entry);
+				}
 			}
+			c.write(new Frame(digest(entries)));
 		}
-		
-		return false;
+		// forget the sequence numbers of servers that are gone
+		for(String id : announced.keySet()){
+			if(loads.get(id)==null) announced.remove(id);
+		}
+	}
+	
+	/*
+	 * everything we know, ours first, for a link that has just been made
+	 */
+	private String fullDigest(){
+		List<ServerDigest.Entry> entries = new ArrayList<ServerDigest.Entry>();
+		entries.add(new ServerDigest.Entry(self(subscriptions.getSummary()),ownSeq.get()));
+		for(ServerInfo server : loads.servers()){
+			Long seq = announced.get(server.getId());
+			if(seq!=null) entries.add(new ServerDigest.Entry(server,seq));
+		}
+		return digest(entries);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private String digest(List<ServerDigest.Entry> entries){
+		JSONObject response = new JSONObject();
+		response.put("command","SERVER_DIGEST");
+		response.put("id",serverId);
+		response.put("servers",ServerDigest.toJson(entries));
+		return response.toString();
+	}
+	
+	/*
+	 * what we would announce about ourselves right now, with topics as the summary or null
+	 */
+	private ServerInfo self(long[] topics){
+		String parentNow = parent!=null ? parentId : null;
+		return new ServerInfo(serverId,Settings.getLocalHostname(),Settings.getLocalPort(),conToClient.size(),
+				announcedCapacity(),depth,parentNow,topics);
 	}
 	
-	public boolean activityBroadcast(Connection con, JSONObject msg){
+	public boolean activityBroadcast(Connection con, Message msg){
 		
 		if(!conToSer.contains(con)){
 			
@@ -386,20 +1001,179 @@ public class ControlSolution extends Control {
 			return true;
 		}
 		
-		for(Connection c : conToSer){
-			if(!c.equals(con)){
-				c.writeMsg(msg.toString());
+		if(!firstFlood(msg)) return false;
+		
+		Frame frame = Frame.of(msg);
+		
+		String topic = msg.getTopic();
+		if(activities!=null) activities.append(msg.getAid(),topic!=null,frame.json());
+		if(topic!=null){
+			forwardTopic(con,frame,topic);
+			deliver(subscriptions.subscribers(topic),null,frame,msg.getRawActivity(),msg.isActivityObject());
+			return false;
+		}
+		
+		flood(con,frame);
+		
+		deliver(conToClient,null,frame,msg.getRawActivity(),msg.isActivityObject());
+		
+		return false;
+	}
+	
+	/*
+	 * send an activity on a topic only towards the servers that may have subscribers
+	 * for it, each link once however many of them are behind it. The servers back
+	 * the way it came are for the servers that way to send it to. A server we know
+	 * of but have lost the way to, while its link is being remade, could be anywhere,
+	 * so then the activity is flooded like any other rather than risk it going nowhere.
+	 * A link no server we know of is behind, one whose server has not announced itself
+	 * yet, may lead to subscribers too and gets everything
+	 */
+	private void forwardTopic(Connection except, Frame frame, String topic){
+		Set<Connection> links = new HashSet<Connection>();
+		Set<Connection> known = new HashSet<Connection>();
+		for(ServerInfo server : loads.servers()){
+			Connection link = routes.get(server.getId());
+			if(link!=null) known.add(link);
+			if(!server.wants(topic)) continue;
+			if(link==null){
+				flood(except,frame);
+				return;
 			}
+			links.add(link);
+		}
+		for(Connection c : conToSer){
+			if(!c.equals(except) && (links.contains(c) || !known.contains(c))) c.write(frame);
+		}
+	}
+	
+	public boolean subscribe(Connection con, Message msg){
+		
+		if(!conToClient.contains(con)){
+			return invalidMessage(con,"not logged in");
 		}
+		if(subscriptions.subscribe(con,msg.getTopic())) summaryChanged();
+		return false;
+	}
+	
+	public boolean unsubscribe(Connection con, Message msg){
 		
-		for(Connection c : conToClient){
-			c.writeMsg(msg.toString());
+		if(!conToClient.contains(con)){
+			return invalidMessage(con,"not logged in");
 		}
+		if(subscriptions.unsubscribe(con,msg.getTopic())) summaryChanged();
+		return false;
+	}
+	
+	/*
+	 * add a filter to what a client gets, an empty filter drops the ones it has
+	 */
+	public boolean filter(Connection con, Message msg){
 		
+		if(!conToClient.contains(con)){
+			return invalidMessage(con,"not logged in");
+		}
+		String filter = msg.getFilter();
+		if(filter.trim().isEmpty()){
+			filters.remove(con);
+		}
+		else if(!filters.add(con,filter)){
+			return invalidMessage(con,"filter is not valid");
+		}
 		return false;
 	}
 	
-	public boolean logOut(Connection con, JSONObject msg){
+	/*
+	 * send an activity to the clients among targets whose filters let it through.
+	 * The activity is only parsed when some client has a filter, and then only once
+	 * however many clients there are. A broadcast's activity is a string holding the
+	 * object rather than the object, it has to be parsed twice
+	 */
+	private void deliver(Set<Connection> targets, Connection except, Frame frame, String activity, boolean object){
+		if(filters.isEmpty()){
+			broadcast(targets,except,frame);
+			return;
+		}
+		Set<Connection> matched = Collections.emptySet();
+		try {
+			Object parsed = new JSONParser().parse(activity);
+			if(!object && parsed instanceof String) parsed = new JSONParser().parse((String) parsed);
+			if(parsed instanceof JSONObject) matched = filters.matching((JSONObject) parsed);
+		} catch (ParseException e) {
+			log.error("failed to parse activity: "+activity);
+		}
+		for(Connection c : targets){
+			if(!c.equals(except) && (matched.contains(c) || !filters.filtered(c))){
+				c.write(frame);
+			}
+		}
+	}
+	
+	/*
+	 * tell the other servers about our new summary soon, a burst of clients subscribing
+	 * at once goes out as one announce
+	 */
+	private void summaryChanged(){
+		if(!summaryPending.compareAndSet(false,true)) return;
+		timers.schedule(new Runnable(){
+			public void run(){
+				summaryPending.set(false);
+				announceNow();
+			}
+		},SUMMARY_DELAY);
+	}
+	
+	/*
+	 * send a flooded message on to other servers. With the tree overlay it only
+	 * goes over the links of the tree, so every server gets it once however many
+	 * extra links there are, instead of once per link
+	 */
+	private void flood(Connection except, Frame frame){
+		if(Settings.getOverlay().equals("flood")){
+			broadcast(conToSer,except,frame);
+			return;
+		}
+		for(Connection c : conToSer){
+			if(!c.equals(except) && floodsOver(c)){
+				c.write(frame);
+			}
+		}
+	}
+	
+	/*
+	 * whether flooded messages go over a link
+	 */
+	private boolean floodsOver(Connection c){
+		// cut off from the tree, the other links are all that is left
+		boolean orphan = parent==null && depth!=0;
+		return Settings.getOverlay().equals("flood") || orphan || treeLink(c);
+	}
+	
+	/*
+	 * whether a link is to our parent or to a child, a link to a server that has not
+	 * said who it is or who its parent is counts as one so nothing is ever cut off
+	 */
+	private boolean treeLink(Connection c){
+		if(c==parent) return true;
+		String id = neighbours.get(c);
+		if(id==null || id.isEmpty()) return true;
+		ServerInfo info = loads.get(id);
+		return info==null || serverId.equals(info.getParent()) || info.getParent()==null && info.getDepth()!=0;
+	}
+	
+	/*
+	 * write the same frame to every connection in targets except one, so a message
+	 * is only ever serialised once for each form however many connections get it
+	 */
+	private void broadcast(Set<Connection> targets, Connection except, Frame frame){
+		for(Connection c : targets){
+			if(!c.equals(except)){
+				c.write(frame);
+			}
+		}
+	}
+	
+	public boolean logOut(Connection con, Message msg){
 		return true;
 	}
 	
@@ -432,11 +1206,11 @@ public class ControlSolution extends Control {
 	}
 
 	// redirect method
-	public boolean redirect(Connection con,String redirect,int leastLoad){
+	public boolean redirect(Connection con,String redirect,ServerInfo free){
 		JSONObject response = new JSONObject();
 		// send redirect command
-		String hostname = freeServer.get("hostname");
-		String port = freeServer.get("port"); 
+		String hostname = free.getHostname();
+		String port = Integer.toString(free.getPort());
 		response.put("command",redirect);
 		response.put("hostname",hostname);
 		response.put("port",port);
@@ -445,7 +1219,7 @@ public class ControlSolution extends Control {
 	}
 	
 	
-	public boolean register(Connection con, JSONObject msg){
+	public boolean register(Connection con, Message msg){
 		
 		//if client login already
 		if(conToClient.contains(con)){
@@ -453,37 +1227,44 @@ public class ControlSolution extends Control {
 		}
 		
 		//get part of message 
-		Object username = msg.get("username");
-		Object secret = msg.get("secret");
+		String usernameS = msg.getUsername();
+		String secretS = msg.getSecret();
 		
-		String usernameS = username.toString();
-		String secretS = secret.toString();
+		if(Settings.getRegistration().equals("shard")){
+			return registerShard(con,usernameS,secretS);
+		}
 		
 		//if username and password exist in this server
-		if(clientRecord.containsKey(usernameS)){
+		if(!clientRecord.putIfAbsent(usernameS, secretS)){
 			
 			return failMessage(con,"REGISTER_FALLED",usernameS + " is already registered with the system");
 			
 		}
 		else{
 			
-			clientRecord.put(usernameS, secretS);
-			
 			if(conToSer.size()>0){
-			HashSet<String> temp = (HashSet<String>) serverIdSet.clone();
-			registerLog.put(usernameS, con);
-			lockAllowReply.put(con, temp);
+			Set<String> temp = newSet();
+			temp.addAll(serverIdSet);
+			final String rid = serverId+"-"+nextRid.incrementAndGet();
+			PendingRegistration registration = new PendingRegistration(usernameS,secretS,con,temp);
+			pending.put(rid,registration);
+			// nobody denied it in time, servers that have not answered by now are gone
+			registration.timeout = timers.schedule(new Runnable(){
+				public void run(){
+					finishRegistration(rid,true);
+				}
+			},Settings.getLockTimeout());
 			
 			//send lock request
 			JSONObject response = new JSONObject();
 			response.put("command","LOCK_REQUEST");
 			response.put("username",usernameS);
 			response.put("secret",secretS);
+			response.put("rid",rid);
+			sent("LOCK_REQUEST",rid,"");
 			//con.writeMsg(response.toString());
 			
-			for(Connection c : conToSer){
-				c.writeMsg(response.toString());				
-			}
+			flood(null,new Frame(response.toString()));
 			
 			}
 			else{
@@ -493,119 +1274,469 @@ public class ControlSolution extends Control {
 		}
 		
 	}
+	
+	/*
+	 * answer the client of a flood registration, only the first caller for a request does
+	 */
+	private void finishRegistration(String rid, boolean success){
+		PendingRegistration registration = pending.remove(rid);
+		if(registration==null) return;
+		if(registration.timeout!=null) registration.timeout.cancel();
+		if(success){
+			successMessage(registration.con,"REGISTER_SUCCESS","register success for" + registration.username);
+		}
+		else{
+			failMessage(registration.con,"REGISTER_FALLED",registration.username + " is already registered with the system");
+		}
+	}
+	
+	/*
+	 * a lock message we have already handled is neither forwarded nor handled again,
+	 * the key says which message it is, answers from different servers are different messages
+	 */
+	private boolean firstTime(Message msg, String server){
+		if(!msg.has(Message.RID)) return true;
+		return seen.firstTime(msg.getCommand()+" "+msg.getRid()+" "+server);
+	}
+	
+	/*
+	 * a lock message we send ourselves counts as handled, on a mesh it can come
+	 * back to us and must not be taken for another server's
+	 */
+	private void sent(String command, String rid, String server){
+		seen.firstTime(command+" "+rid+" "+server);
+	}
+	
+	/*
+	 * forget seen messages a generation at a time, a copy of a message is long
+	 * gone once its registration's deadline has passed
+	 */
+	private void rotateSeen(){
+		timers.schedule(new Runnable(){
+			public void run(){
+				seen.rotate();
+				rotateSeen();
+			}
+		},Settings.getLockTimeout());
+	}
 
-	public boolean lockRequest(Connection con, JSONObject msg){
+	/*
+	 * a new id for a message we flood, remembered so it is dropped if it comes back to us
+	 */
+	private String newAid(){
+		String aid = serverId+":"+nextAid.incrementAndGet();
+		flooded.firstTime(aid);
+		return aid;
+	}
+	
+	/*
+	 * a flooded message we have already handled is neither forwarded nor handled again,
+	 * one without an id comes from a server that does not tag them and always is
+	 */
+	private boolean firstFlood(Message msg){
+		if(!msg.has(Message.AID)) return true;
+		return flooded.firstTime(msg.getAid());
+	}
+	
+	private void rotateFlooded(){
+		timers.schedule(new Runnable(){
+			public void run(){
+				flooded.rotate();
+				rotateFlooded();
+			}
+		},Settings.getDedupWindow());
+	}
+
+	@SuppressWarnings("unchecked")
+	public boolean lockRequest(Connection con, Message msg){
 		
 		if(!conToSer.contains(con)){
 			return invalidMessage(con,"unau server");
 		}
 		
-		Object username = msg.get("username");
-		Object secret = msg.get("secret");
+		if(!firstTime(msg,"")) return false;
 		
-		String usernameS = username.toString();
-		String secretS = secret.toString();
+		String usernameS = msg.getUsername();
+		String secretS = msg.getSecret();
 		
-		for(Connection c : conToSer){
-			if(!c.equals(con)){
-				c.writeMsg(msg.toString());
-			}
-		}
+		flood(con,Frame.of(msg));
 		
-		if(clientRecord.containsKey(usernameS)){
+		if(!clientRecord.putIfAbsent(usernameS,secretS)){
 			//lock denied
 			JSONObject response = new JSONObject();
 			response.put("command","LOCK_DENIED");
 			response.put("username",usernameS);
 			response.put("secret",secretS);
-			
-			for(Connection c: conToSer){
-				c.writeMsg(response.toString());
+			response.put("server",serverId);
+			if(msg.has(Message.RID)){
+				response.put("rid",msg.getRid());
+				sent(response.get("command").toString(),msg.getRid(),serverId);
 			}
+			
+			flood(null,new Frame(response.toString()));
 			return false;
 		}
 		else{
 			//lock allowd
-			clientRecord.put(usernameS,secretS);
 			JSONObject response = new JSONObject();
 			response.put("command","LOCK_ALLOWED");
 			response.put("username",usernameS);
 			response.put("secret",secretS);
 			response.put("server",serverId );
-			
-			for(Connection c: conToSer){
-				c.writeMsg(response.toString());
+			if(msg.has(Message.RID)){
+				response.put("rid",msg.getRid());
+				sent(response.get("command").toString(),msg.getRid(),serverId);
 			}
+			
+			flood(null,new Frame(response.toString()));
 			return false;
 		}
 	}
 	
 	
-	public boolean lockDenied(Connection con, JSONObject msg){
+	public boolean lockDenied(Connection con, Message msg){
 		
 		if(!conToSer.contains(con)){
 			return invalidMessage(con,"unau server");
 		}
 		
-		for(Connection c : conToSer){
-			if(!c.equals(con)){
-			c.writeMsg(msg.toString());}
+		if(!firstTime(msg,msg.has(Message.SERVER) ? msg.getServer() : "")) return false;
+		
+		flood(con,Frame.of(msg));
+		
+		String usernameS = msg.getUsername();
+		String secretS = msg.getSecret();
+		
+		// only the registration that was denied is undone, not a user that already had the name
+		clientRecord.remove(usernameS,secretS);
+		
+		if(msg.has(Message.RID)) finishRegistration(msg.getRid(),false);
+		
+		return false;
+	}
+	
+	
+	public boolean lockAllowed(Connection con, Message msg){
+		
+		if(!conToSer.contains(con)){
+			return invalidMessage(con,"unau server");
 		}
 		
-		Object username = msg.get("username");
-		Object secret = msg.get("secret");
+		String idS = msg.getServer();
 		
-		String usernameS = username.toString();
-		String secretS = secret.toString();
+		if(!firstTime(msg,idS)) return false;
 		
-		clientRecord.remove(usernameS);
+		flood(con,Frame.of(msg));
 		
-		if(registerLog.containsKey(usernameS)){
+		PendingRegistration registration = msg.has(Message.RID) ? pending.get(msg.getRid()) : null;
+		if(registration!=null){
 			
-			failMessage(registerLog.get(usernameS),"REGISTER_FALLED",usernameS + "is already registered with the system");
-			lockAllowReply.remove(registerLog.get(usernameS));
-			registerLog.remove(usernameS);
-			return true;
+			registration.waiting.remove(idS);
+			
+			if(registration.waiting.isEmpty()){
+				finishRegistration(msg.getRid(),true);
+			}
+		}
+		
+		return false;
+	}
+	
+	
+	/*
+	 * Sharded registration: every username belongs to one server on the hash ring,
+	 * the claim for it goes straight to that server and only that server decides.
+	 * Once it allows a username it tells every server, so logins still work
+	 * anywhere and whoever takes over the username's part of the ring already knows it.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean registerShard(Connection con, String usernameS, String secretS){
+		
+		if(clientRecord.contains(usernameS) || registerLog.putIfAbsent(usernameS,con)!=null){
+			return failMessage(con,"REGISTER_FALLED",usernameS + " is already registered with the system");
 		}
+		// the owner may be gone, so give up on it in time rather than wait forever
+		final String username = usernameS;
+		final Connection registering = con;
+		timers.schedule(new Runnable(){
+			public void run(){
+				if(registerLog.remove(username,registering)){
+					failMessage(registering,"REGISTER_FALLED","no answer from the owner of "+username);
+				}
+			}
+		},Settings.getLockTimeout());
 		
+		String owner = ring.owner(usernameS);
+		if(!owner.equals(serverId)){
+			JSONObject claim = new JSONObject();
+			claim.put("command","REGISTER_CLAIM");
+			claim.put("username",usernameS);
+			claim.put("secret",secretS);
+			claim.put("id",serverId);
+			claim.put("server",owner);
+			if(route(owner,new Frame(claim.toString()))) return false;
+		}
+		// we own it, or have no way to reach its owner
+		claim(usernameS,secretS,serverId);
 		return false;
 	}
 	
+	/*
+	 * pass a message one link closer to the server it is for,
+	 * returns false if we do not know a way there
+	 */
+	private boolean route(String target, Frame frame){
+		Connection next = routes.get(target);
+		if(next==null) return false;
+		return next.write(frame);
+	}
+	
+	/*
+	 * decide a claim for a username we own, for the server origin
+	 */
+	@SuppressWarnings("unchecked")
+	private void claim(String usernameS, String secretS, String origin){
+		
+		if(clientRecord.putIfAbsent(usernameS,secretS)){
+			JSONObject response = new JSONObject();
+			response.put("command","USER_REGISTERED");
+			response.put("username",usernameS);
+			response.put("secret",secretS);
+			response.put("server",origin);
+			response.put("aid",newAid());
+			flood(null,new Frame(response.toString()));
+			if(origin.equals(serverId)) registered(usernameS,true);
+		}
+		else if(origin.equals(serverId)){
+			registered(usernameS,false);
+		}
+		else{
+			JSONObject response = new JSONObject();
+			response.put("command","CLAIM_DENIED");
+			response.put("username",usernameS);
+			response.put("server",origin);
+			if(!route(origin,new Frame(response.toString()))){
+				log.info("no route to "+origin+" to deny the claim for "+usernameS);
+			}
+		}
+	}
+	
+	/*
+	 * answer the client that asked for a username, if it is still here
+	 */
+	private void registered(String usernameS, boolean success){
+		Connection registering = registerLog.remove(usernameS);
+		if(registering==null) return;
+		if(success){
+			successMessage(registering,"REGISTER_SUCCESS","register success for" + usernameS);
+		}
+		else{
+			failMessage(registering,"REGISTER_FALLED",usernameS + " is already registered with the system");
+		}
+	}
 	
-	public boolean lockAllowed(Connection con, JSONObject msg){
+	public boolean registerClaim(Connection con, Message msg){
 		
 		if(!conToSer.contains(con)){
 			return invalidMessage(con,"unau server");
 		}
 		
-		for(Connection c : conToSer){
-			if(!c.equals(con)){
-			c.writeMsg(msg.toString());}
+		if(!msg.getServer().equals(serverId) && route(msg.getServer(),Frame.of(msg))){
+			return false;
 		}
+		claim(msg.getUsername(),msg.getSecret(),msg.getId());
+		return false;
+	}
+	
+	public boolean claimDenied(Connection con, Message msg){
 		
-		Object username = msg.get("username");
-		Object secret = msg.get("secret");
-		Object id = msg.get("server"); 
+		if(!conToSer.contains(con)){
+			return invalidMessage(con,"unau server");
+		}
 		
-		String usernameS = username.toString();
-		String secretS = secret.toString();
-		String idS = id.toString();
+		if(msg.getServer().equals(serverId)){
+			registered(msg.getUsername(),false);
+		}
+		else if(!route(msg.getServer(),Frame.of(msg))){
+			log.info("no route to "+msg.getServer()+" to deny the claim for "+msg.getUsername());
+		}
+		return false;
+	}
+	
+	public boolean userRegistered(Connection con, Message msg){
 		
-		if(registerLog.containsKey(usernameS)){
-			
-			(lockAllowReply.get(registerLog.get(usernameS))).remove(idS);
-			HashSet<String> tempIdSet = lockAllowReply.get(registerLog.get(usernameS));
-			
-			if(tempIdSet.isEmpty()){
-				
-				successMessage(registerLog.get(usernameS),"REGISTER_SUCCESS","register success for" + usernameS);
-				lockAllowReply.remove(registerLog.get(usernameS));
-				registerLog.remove(usernameS);
+		if(!conToSer.contains(con)){
+			return invalidMessage(con,"unau server");
+		}
+		
+		if(!firstFlood(msg)) return false;
+		
+		flood(con,Frame.of(msg));
+		
+		clientRecord.put(msg.getUsername(),msg.getSecret());
+		if(msg.getServer().equals(serverId)){
+			registered(msg.getUsername(),true);
+		}
+		return false;
+	}
+
+	
+	/*
+	 * send a server that just joined the users it is missing, from a thread of its own
+	 * so neither server stops processing messages while the registry goes across
+	 */
+	private void sendUsers(final Connection con, final long[] theirs){
+		Threads.newThread(new Runnable(){
+			public void run(){
+				boolean[] differ = UserSync.differing(UserSync.digest(clientRecord),theirs);
+				List<String[]> chunk = new ArrayList<String[]>(UserSync.CHUNK);
+				int sent = 0;
+				for(Map.Entry<String,String> user : clientRecord.entries()){
+					if(!differ[UserSync.bucket(user.getKey())]) continue;
+					chunk.add(new String[]{user.getKey(),user.getValue()});
+					if(chunk.size()==UserSync.CHUNK){
+						if(!sendChunk(con,chunk,false)) return;
+						sent += chunk.size();
+						chunk.clear();
+					}
+				}
+				if(!sendChunk(con,chunk,true)) return;
+				sent += chunk.size();
+				log.info("synced "+sent+" users to "+Settings.socketAddress(con.getSocket()));
+			}
+		},"user-sync").start();
+	}
+	
+	/*
+	 * returns false if the connection has gone
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean sendChunk(Connection con, List<String[]> chunk, boolean last){
+		// leave room in the queue for everything else going to the server
+		while(con.isOpen() && con.getOutbound().size()>Settings.getOutboundQueueSize()/2){
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
 				return false;
 			}
 		}
+		JSONObject response = new JSONObject();
+		response.put("command","USER_SYNC");
+		response.put("users",UserSync.chunk(chunk));
+		if(last) response.put("info","complete");
+		return con.writeMsg(response.toString());
+	}
+	
+	public boolean userSync(Connection con, Message msg){
 		
+		if(!conToSer.contains(con)){
+			return invalidMessage(con,"user sync from non-authourised server");
+		}
+		List<String[]> users = UserSync.parse(msg.getUsers());
+		if(users==null) return invalidMessage(con,"users is not a list of users");
+		for(String[] user : users){
+			// the network's registry wins over whatever we had while away
+			if(!user[1].equals(clientRecord.getCredential(user[0]))) clientRecord.putCredential(user[0],user[1]);
+		}
+		if(msg.has(Message.INFO)){
+			log.info("user sync complete, "+clientRecord.size()+" users known");
+		}
 		return false;
 	}
 
+	
+	/*
+	 * link back into the tree after losing our parent, trying the servers we have heard
+	 * from with a backoff between rounds. Only servers we can no longer reach through our
+	 * own links are tried, those are not below us. Two servers that lost their parents at
+	 * once must not link to each other's parts of the tree, so a server only links to a
+	 * server nearer the root than itself, or as near and with a lower id. The orphan with
+	 * the lowest depth and id then stays put and becomes the new root if nothing is left
+	 * above it, and the rest link below it.
+	 */
+	private void reattach(){
+		if(!reattaching.compareAndSet(false,true)) return;
+		Threads.newThread(new Runnable(){
+			public void run(){
+				try {
+					long backoff = FIRST_BACKOFF;
+					while(parent==null && !isTerm()){
+						List<ServerInfo> candidates = candidates();
+						if(candidates.isEmpty()){
+							depth = 0;
+							log.info("no server above us is left, this server is now a root");
+							return;
+						}
+						for(ServerInfo candidate : candidates){
+							try {
+								connect(candidate.getHostname(),candidate.getPort(),true);
+								if(candidate.getDepth()>=0) depth = candidate.getDepth()+1;
+								log.info("reattached to "+candidate.getHostname()+":"+candidate.getPort());
+								return;
+							} catch (IOException e) {
+								log.debug("failed to reattach to "+candidate.getHostname()+":"+candidate.getPort()+": "+e);
+							}
+						}
+						Thread.sleep(backoff);
+						backoff = Math.min(backoff*2,MAX_BACKOFF);
+					}
+				} catch (InterruptedException e) {
+					log.debug("interrupted while reattaching");
+				} finally {
+					reattaching.set(false);
+				}
+			}
+		},"reattach").start();
+	}
+	
+	/*
+	 * the servers to try, nearest the root first and then the least loaded
+	 */
+	private List<ServerInfo> candidates(){
+		List<ServerInfo> candidates = new ArrayList<ServerInfo>();
+		if(!attached){
+			// never got in at all, keep trying the server we were told to
+			candidates.add(new ServerInfo(null,Settings.getRemoteHostname(),Settings.getRemotePort(),0,Settings.getCapacity(),-1,null,null));
+			return candidates;
+		}
+		for(ServerInfo server : loads.servers()){
+			if(below(server)) continue;
+			if(compareRank(server.getDepth(),server.getId(),depth,serverId)<0) candidates.add(server);
+		}
+		Collections.sort(candidates,new Comparator<ServerInfo>(){
+			public int compare(ServerInfo a, ServerInfo b){
+				int byDepth = compareRank(a.getDepth(),"",b.getDepth(),"");
+				if(byDepth!=0) return byDepth;
+				return Long.compare((long) a.getLoad()*b.getCapacity(),(long) b.getLoad()*a.getCapacity());
+			}
+		});
+		return candidates;
+	}
+	
+	/*
+	 * whether a server is in our part of the tree, going by the parents servers
+	 * announced. Where a server did not say, any server we can still reach is
+	 * taken to be below us
+	 */
+	private boolean below(ServerInfo server){
+		ServerInfo s = server;
+		for(int i=0;i<=loads.size();i++){
+			if(s.getParent()==null) return s.getDepth()!=0 && routes.containsKey(server.getId());
+			if(s.getParent().equals(serverId)) return true;
+			s = loads.get(s.getParent());
+			if(s==null) return routes.containsKey(server.getId());
+		}
+		// parents that go round in a circle, stale announces, keep away
+		return true;
+	}
+	
+	/*
+	 * order servers by depth and then id, an unknown depth is the deepest
+	 */
+	private static int compareRank(int depthA, String idA, int depthB, String idB){
+		long a = depthA<0 ? Long.MAX_VALUE : depthA;
+		long b = depthB<0 ? Long.MAX_VALUE : depthB;
+		if(a!=b) return a<b ? -1 : 1;
+		return idA.compareTo(idB);
+	}
+
 }
@@ -0,0 +1,445 @@
+package activitystreamer.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * A compact table of usernames and credentials. A credential is the first 16
+ * bytes of the sha-256 of the username and secret, so no secret is kept and
+ * every credential is the same size. Outside the table a credential is written
+ * as 32 hex digits.
+ *
+ * The table is open addressed with linear probing over parallel arrays, so a
+ * user costs a slot in each array rather than a map entry, two strings and
+ * their arrays. The usernames' utf-8 bytes are packed one after another into a
+ * single byte arena, each behind a one or two byte length.
+ *
+ * A slot is 24 bytes, the arena offset, the username's hash and the credential,
+ * and the table is kept between 3/8 and 3/4 full, so a user takes 32 to 64 bytes
+ * of slots plus its username and length in the arena. With 8 character usernames
+ * that is 50 to 65 bytes a user, where a map of the plain strings takes around 140.
+ *
+ * Lookups share a read lock and changes take the write lock. Removed users leave
+ * a tombstone and their bytes in the arena until the table is next rebuilt.
+ */
+public class CredentialTable {
+	private static final int EMPTY = -1;
+	private static final int REMOVED = -2;
+	private static final int MAX_USERNAME = 0x7fff;
+	private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>(){
+		@Override
+		protected MessageDigest initialValue(){
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("no sha-256",e);
+			}
+		}
+	};
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	// all guarded by lock
+	private int[] offsets;
+	private int[] hashes;
+	private long[] high;
+	private long[] low;
+	private int mask;
+	private byte[] arena = new byte[1024];
+	private int arenaSize = 0;
+	private int size = 0;
+	private int removed = 0;
+	// changes whenever the slots are rebuilt, so an iteration knows to start over
+	private int version = 0;
+
+	public CredentialTable(int expected){
+		allocate(capacityFor(expected));
+	}
+
+	/*
+	 * the credential for a username and secret, as two longs
+	 */
+	public static long[] hash(String username, String secret){
+		MessageDigest md = sha256.get();
+		md.update(username.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		byte[] d = md.digest(secret.getBytes(StandardCharsets.UTF_8));
+		long h = 0;
+		long l = 0;
+		for(int i=0;i<8;i++){
+			h = h<<8 | (d[i] & 0xff);
+			l = l<<8 | (d[i+8] & 0xff);
+		}
+		return new long[]{h,l};
+	}
+
+	/*
+	 * the credential for a username and secret, as hex
+	 */
+	public static String credential(String username, String secret){
+		long[] c = hash(username,secret);
+		return toHex(c[0],c[1]);
+	}
+
+	static String toHex(long h, long l){
+		char[] out = new char[32];
+		for(int i=15;i>=0;i--){
+			out[i] = Character.forDigit((int) (h & 0xf),16);
+			out[i+16] = Character.forDigit((int) (l & 0xf),16);
+			h >>>= 4;
+			l >>>= 4;
+		}
+		return new String(out);
+	}
+
+	/*
+	 * null if it is not a credential
+	 */
+	static long[] fromHex(String hex){
+		if(hex==null || hex.length()!=32) return null;
+		long h = 0;
+		long l = 0;
+		for(int i=0;i<16;i++){
+			int a = Character.digit(hex.charAt(i),16);
+			int b = Character.digit(hex.charAt(i+16),16);
+			if(a<0 || b<0) return null;
+			h = h<<4 | a;
+			l = l<<4 | b;
+		}
+		return new long[]{h,l};
+	}
+
+	public int size(){
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(String username){
+		byte[] key = bytes(username);
+		if(key==null) return false;
+		int hash = hashOf(key);
+		lock.readLock().lock();
+		try {
+			return find(key,hash)>=0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * whether the user exists and has this credential
+	 */
+	public boolean matches(String username, long h, long l){
+		byte[] key = bytes(username);
+		if(key==null) return false;
+		int hash = hashOf(key);
+		lock.readLock().lock();
+		try {
+			int slot = find(key,hash);
+			return slot>=0 && high[slot]==h && low[slot]==l;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * the user's credential as hex, or null if there is no such user
+	 */
+	public String get(String username){
+		byte[] key = bytes(username);
+		if(key==null) return null;
+		int hash = hashOf(key);
+		lock.readLock().lock();
+		try {
+			int slot = find(key,hash);
+			return slot<0 ? null : toHex(high[slot],low[slot]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * returns true if the user was added, false if the username is taken or too long
+	 */
+	public boolean putIfAbsent(String username, long h, long l){
+		return put(username,h,l,false);
+	}
+
+	/*
+	 * add the user or replace its credential, returns true if it was added
+	 */
+	public boolean put(String username, long h, long l){
+		return put(username,h,l,true);
+	}
+
+	/*
+	 * remove the user only if it has this credential
+	 */
+	public boolean remove(String username, long h, long l){
+		byte[] key = bytes(username);
+		if(key==null) return false;
+		int hash = hashOf(key);
+		lock.writeLock().lock();
+		try {
+			int slot = find(key,hash);
+			if(slot<0 || high[slot]!=h || low[slot]!=l) return false;
+			offsets[slot] = REMOVED;
+			size--;
+			removed++;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private boolean put(String username, long h, long l, boolean replace){
+		byte[] key = bytes(username);
+		if(key==null){
+			if(replace) throw new IllegalArgumentException("username is too long");
+			return false;
+		}
+		int hash = hashOf(key);
+		lock.writeLock().lock();
+		try {
+			int slot = find(key,hash);
+			if(slot>=0){
+				if(replace){
+					high[slot] = h;
+					low[slot] = l;
+				}
+				return false;
+			}
+			if((size+removed+1)*4>offsets.length*3) rebuild(capacityFor(size+1));
+			slot = hash & mask;
+			while(offsets[slot]>=0){
+				slot = (slot+1) & mask;
+			}
+			if(offsets[slot]==REMOVED) removed--;
+			offsets[slot] = append(key);
+			hashes[slot] = hash;
+			high[slot] = h;
+			low[slot] = l;
+			size++;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * the slot holding key, or -1
+	 */
+	private int find(byte[] key, int hash){
+		int slot = hash & mask;
+		while(true){
+			int offset = offsets[slot];
+			if(offset==EMPTY) return -1;
+			if(offset>=0 && hashes[slot]==hash && keyEquals(offset,key)) return slot;
+			slot = (slot+1) & mask;
+		}
+	}
+
+	private boolean keyEquals(int offset, byte[] key){
+		int length = arena[offset] & 0xff;
+		if(length>=0x80){
+			length = (length & 0x7f)<<8 | (arena[offset+1] & 0xff);
+			offset += 2;
+		} else {
+			offset += 1;
+		}
+		if(length!=key.length) return false;
+		for(int i=0;i<length;i++){
+			if(arena[offset+i]!=key[i]) return false;
+		}
+		return true;
+	}
+
+	private String keyAt(int offset){
+		int length = arena[offset] & 0xff;
+		if(length>=0x80){
+			length = (length & 0x7f)<<8 | (arena[offset+1] & 0xff);
+			offset += 2;
+		} else {
+			offset += 1;
+		}
+		return new String(arena,offset,length,StandardCharsets.UTF_8);
+	}
+
+	private int append(byte[] key){
+		int need = key.length+2;
+		if(arenaSize+need>arena.length){
+			long grown = Math.max((long) arena.length*2,(long) arenaSize+need);
+			if(grown>Integer.MAX_VALUE-8) throw new IllegalStateException("username arena is full");
+			arena = Arrays.copyOf(arena,(int) grown);
+		}
+		int offset = arenaSize;
+		if(key.length<0x80){
+			arena[arenaSize++] = (byte) key.length;
+		} else {
+			arena[arenaSize++] = (byte) (0x80 | key.length>>8);
+			arena[arenaSize++] = (byte) key.length;
+		}
+		System.arraycopy(key,0,arena,arenaSize,key.length);
+		arenaSize += key.length;
+		return offset;
+	}
+
+	/*
+	 * move every user into fresh slots and a fresh arena, dropping tombstones
+	 * and the bytes of removed usernames
+	 */
+	private void rebuild(int capacity){
+		int[] oldOffsets = offsets;
+		int[] oldHashes = hashes;
+		long[] oldHigh = high;
+		long[] oldLow = low;
+		byte[] oldArena = arena;
+		allocate(capacity);
+		arena = new byte[Math.max(1024,arenaSize)];
+		arenaSize = 0;
+		for(int i=0;i<oldOffsets.length;i++){
+			int offset = oldOffsets[i];
+			if(offset<0) continue;
+			int length = oldArena[offset] & 0xff;
+			int header = 1;
+			if(length>=0x80){
+				length = (length & 0x7f)<<8 | (oldArena[offset+1] & 0xff);
+				header = 2;
+			}
+			int slot = oldHashes[i] & mask;
+			while(offsets[slot]!=EMPTY){
+				slot = (slot+1) & mask;
+			}
+			offsets[slot] = arenaSize;
+			System.arraycopy(oldArena,offset,arena,arenaSize,header+length);
+			arenaSize += header+length;
+			hashes[slot] = oldHashes[i];
+			high[slot] = oldHigh[i];
+			low[slot] = oldLow[i];
+		}
+		removed = 0;
+		version++;
+	}
+
+	private void allocate(int capacity){
+		offsets = new int[capacity];
+		Arrays.fill(offsets,EMPTY);
+		hashes = new int[capacity];
+		high = new long[capacity];
+		low = new long[capacity];
+		mask = capacity-1;
+	}
+
+	/*
+	 * a power of two that leaves the table no more than 3/4 full
+	 */
+	private static int capacityFor(int users){
+		long need = Math.max(16,(long) users*4/3+1);
+		if(need>1<<30) throw new IllegalStateException("too many users");
+		return Integer.highestOneBit((int) need-1)<<1;
+	}
+
+	/*
+	 * null if the username is too long to be in the table
+	 */
+	private static byte[] bytes(String username){
+		byte[] key = username.getBytes(StandardCharsets.UTF_8);
+		return key.length>MAX_USERNAME ? null : key;
+	}
+
+	/*
+	 * murmur3's 32 bit finaliser over fnv-1a
+	 */
+	private static int hashOf(byte[] key){
+		int h = 0x811c9dc5;
+		for(byte b : key){
+			h ^= b & 0xff;
+			h *= 0x01000193;
+		}
+		h ^= h>>>16;
+		h *= 0x85ebca6b;
+		h ^= h>>>13;
+		h *= 0xc2b2ae35;
+		h ^= h>>>16;
+		return h;
+	}
+
+	/*
+	 * every user and its credential as hex, a chunk of slots at a time so changes
+	 * are never held up for long. A user added or removed while iterating may or
+	 * may not be seen, and if the table is rebuilt the iteration starts over, so a
+	 * user can be seen twice but one that was there throughout is never missed.
+	 */
+	public Iterable<Map.Entry<String,String>> entries(){
+		return new Iterable<Map.Entry<String,String>>(){
+			public Iterator<Map.Entry<String,String>> iterator(){
+				return new Entries();
+			}
+		};
+	}
+
+	private class Entries implements Iterator<Map.Entry<String,String>> {
+		private static final int CHUNK = 1024;
+		private final List<Map.Entry<String,String>> chunk = new ArrayList<Map.Entry<String,String>>(CHUNK);
+		private int next = 0;
+		private int slot = 0;
+		private int seenVersion;
+		private boolean done = false;
+
+		Entries(){
+			lock.readLock().lock();
+			try {
+				seenVersion = version;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		public boolean hasNext(){
+			if(next<chunk.size()) return true;
+			if(done) return false;
+			chunk.clear();
+			next = 0;
+			lock.readLock().lock();
+			try {
+				if(version!=seenVersion){
+					seenVersion = version;
+					slot = 0;
+				}
+				while(slot<offsets.length && chunk.size()<CHUNK){
+					int offset = offsets[slot];
+					if(offset>=0){
+						chunk.add(new AbstractMap.SimpleImmutableEntry<String,String>(keyAt(offset),toHex(high[slot],low[slot])));
+					}
+					slot++;
+				}
+				if(slot==offsets.length) done = true;
+			} finally {
+				lock.readLock().unlock();
+			}
+			return next<chunk.size();
+		}
+
+		public Map.Entry<String,String> next(){
+			if(!hasNext()) throw new NoSuchElementException();
+			return chunk.get(next++);
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package activitystreamer.server;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A message ready to be written to any number of connections. Clients and json
+ * server links get it as a json line and binary server links as a binary frame,
+ * each form is encoded at most once, the first time a connection needs it,
+ * and then shared by every connection that gets it.
+ */
+public class Frame {
+	// whichever form the message was created in, the other is made from it
+	private final String line;
+	private final byte[] payload;
+	private volatile ByteBuffer json;
+	private volatile ByteBuffer binary;
+
+	public Frame(String line){
+		this.line = line;
+		this.payload = null;
+	}
+
+	private Frame(byte[] payload){
+		this.line = null;
+		this.payload = payload;
+	}
+
+	/*
+	 * a frame for forwarding a message in whatever form it arrived,
+	 * so a binary message is passed on to binary links without encoding it again
+	 */
+	static Frame of(Message m){
+		if(m.getBinary()!=null) return new Frame(m.getBinary());
+		return new Frame(m.getSource());
+	}
+
+	public ByteBuffer json(){
+		ByteBuffer frame = json;
+		if(frame==null){
+			String source = line;
+			if(source==null){
+				Message m = new Message();
+				BinaryCodec.decode(payload,m);
+				source = m.getSource();
+			}
+			frame = Connection.frame(source);
+			json = frame;
+		}
+		return frame;
+	}
+
+	/*
+	 * null if the line is not a message we can encode, then it can only go out as json
+	 */
+	public ByteBuffer binary(){
+		ByteBuffer frame = binary;
+		if(frame==null){
+			if(payload!=null){
+				frame = BinaryCodec.frame(payload,0,payload.length);
+			} else {
+				Message m = new Message();
+				if(!new MessageDecoder().decode(line,m) || !m.has(Message.COMMAND)) return null;
+				frame = BinaryCodec.encode(m);
+			}
+			binary = frame;
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,216 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import activitystreamer.util.Settings;
+
+/*
+ * Splits what arrives on a connection into frames, for both engines. The thread
+ * engine reads from the connection's stream, the nio engine fills it from the
+ * channel whenever the reactor sees data and then takes every complete frame.
+ * A frame is either a newline terminated json line or a binary frame, the first
+ * byte of every frame says which it is, so a link can switch to binary at any
+ * point without the reader being told.
+ *
+ * When the other side starts compressing it sends Compressor.MARKER at a frame
+ * boundary, everything after it is inflated before it is split into frames.
+ */
+class FrameReader {
+	private final InputStream in;
+	private byte[] buf = new byte[8192];
+	private int start = 0;
+	private int end = 0;
+	// how far we have already looked for the end of the current line
+	private int scanned = 0;
+	private String line;
+	private byte[] payload;
+	// set once the other side starts compressing, raw holds what is still to be inflated
+	private Inflater inflater;
+	private byte[] raw;
+	// once the connection has closed the inflater is freed, guarded by this
+	private boolean ended = false;
+
+	/*
+	 * in is null for the nio engine, which fills the reader from its channel
+	 */
+	FrameReader(InputStream in){
+		this.in = in;
+	}
+
+	/*
+	 * read the next frame from the stream, returns false at the end of the stream
+	 */
+	boolean read() throws IOException{
+		while(!next()){
+			if(!fill()) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * take the next complete frame out of what has been read so far,
+	 * returns false if more has to be read first
+	 */
+	boolean next() throws IOException{
+		line = null;
+		payload = null;
+		while(true){
+			if(end>start){
+				if(buf[start]==Compressor.MARKER && inflater==null){
+					startInflating();
+					continue;
+				}
+				if(buf[start]==BinaryCodec.MAGIC){
+					int length = BinaryCodec.payloadLength(buf,start,end);
+					if(length>=0){
+						int header = BinaryCodec.headerLength(length);
+						if(length>Settings.getMaxFrameSize()-header) throw tooLarge();
+						if(end-start>=header+length){
+							payload = Arrays.copyOfRange(buf,start+header,start+header+length);
+							start += header+length;
+							scanned = start;
+							return true;
+						}
+					}
+				} else {
+					for(int i=Math.max(start,scanned);i<end;i++){
+						if(buf[i]=='\n'){
+							int lineEnd = i;
+							if(lineEnd>start && buf[lineEnd-1]=='\r') lineEnd--;
+							line = new String(buf,start,lineEnd-start,StandardCharsets.UTF_8);
+							start = i+1;
+							scanned = start;
+							return true;
+						}
+					}
+					scanned = end;
+				}
+			}
+			if(inflater==null || !inflate()) return false;
+		}
+	}
+
+	boolean isBinary(){
+		return payload!=null;
+	}
+
+	String getLine(){
+		return line;
+	}
+
+	byte[] getPayload(){
+		return payload;
+	}
+
+	/*
+	 * read some more from the stream, returns false at the end of the stream
+	 */
+	private boolean fill() throws IOException{
+		if(inflater!=null){
+			int n = in.read(raw,0,raw.length);
+			if(n<0) return false;
+			input(n);
+			return true;
+		}
+		makeSpace();
+		int n = in.read(buf,end,buf.length-end);
+		if(n<0) return false;
+		end += n;
+		return true;
+	}
+
+	/*
+	 * read whatever the channel has, returns the number of bytes read or -1 at
+	 * the end of the stream
+	 */
+	int fill(ReadableByteChannel channel) throws IOException{
+		int n;
+		if(inflater!=null){
+			n = channel.read(ByteBuffer.wrap(raw));
+			if(n>0) input(n);
+			return n;
+		}
+		makeSpace();
+		n = channel.read(ByteBuffer.wrap(buf,end,buf.length-end));
+		if(n>0) end += n;
+		return n;
+	}
+
+	/*
+	 * everything from here on is compressed, including whatever was read with the marker
+	 */
+	private synchronized void startInflating() throws IOException{
+		if(ended) throw new IOException("connection closed");
+		start++;
+		inflater = new Inflater();
+		int left = end-start;
+		raw = new byte[Math.max(8192,left)];
+		System.arraycopy(buf,start,raw,0,left);
+		inflater.setInput(raw,0,left);
+		end = start;
+		scanned = start;
+	}
+
+	/*
+	 * inflate what we have into the buffer, returns false once it all has been
+	 */
+	private synchronized boolean inflate() throws IOException{
+		if(ended) throw new IOException("connection closed");
+		try {
+			while(true){
+				makeSpace();
+				int n = inflater.inflate(buf,end,buf.length-end);
+				if(n>0){
+					end += n;
+					return true;
+				}
+				if(!inflater.needsDictionary()) return false;
+				inflater.setDictionary(Compressor.DICTIONARY);
+			}
+		} catch (DataFormatException e){
+			throw new IOException("bad compressed data: "+e.getMessage());
+		}
+	}
+
+	private void makeSpace() throws IOException{
+		if(start>0){
+			System.arraycopy(buf,start,buf,0,end-start);
+			end -= start;
+			scanned -= start;
+			start = 0;
+		}
+		if(end==buf.length){
+			if(buf.length>=Settings.getMaxFrameSize()) throw tooLarge();
+			buf = Arrays.copyOf(buf,Math.min(buf.length*2,Settings.getMaxFrameSize()));
+		}
+	}
+
+	private IOException tooLarge(){
+		return new IOException("message larger than "+Settings.getMaxFrameSize()+" bytes");
+	}
+
+	private synchronized void input(int n) throws IOException{
+		if(ended) throw new IOException("connection closed");
+		inflater.setInput(raw,0,n);
+	}
+
+	void close() throws IOException{
+		in.close();
+	}
+
+	/*
+	 * free the inflater's native memory rather than leave it to finalization, can be
+	 * called from any thread once the connection is closed and more than once
+	 */
+	synchronized void end(){
+		ended = true;
+		if(inflater!=null) inflater.end();
+	}
+}
@@ -0,0 +1,115 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+import activitystreamer.util.Threads;
+
+/*
+ * Where the thread engine's listener hands the sockets it accepts, so it goes
+ * straight back to accepting. A few threads of the stage's own read each new
+ * connection's first message, and a connection that says nothing within the
+ * handshake timeout is closed, so clients that connect and never speak only ever
+ * hold up one of these threads for a while.
+ *
+ * Sockets wait in a queue of their own for a free thread. When a storm of
+ * connections, say after a wave of redirects, fills it, new sockets are closed
+ * straight away rather than left to pile up, the client can try again.
+ */
+public class HandshakeStage {
+	private static final Logger log = LogManager.getLogger();
+	// from accepting a connection to its first message being processed
+	static final Histogram latency = new Histogram("ms");
+	private static final AtomicLong timedOut = new AtomicLong();
+	private static final AtomicLong rejected = new AtomicLong();
+	private final ThreadPoolExecutor executor;
+
+	HandshakeStage(){
+		final AtomicInteger count = new AtomicInteger();
+		int threads = Settings.getHandshakeThreads();
+		executor = new ThreadPoolExecutor(threads,threads,60,TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Settings.getAcceptQueue()),new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				return Threads.newThread(r,"handshake-"+count.incrementAndGet());
+			}
+		});
+		// an idle server keeps no threads about
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	void submit(final Socket s){
+		final long accepted = System.nanoTime();
+		try {
+			executor.execute(new Runnable(){
+				public void run(){
+					handshake(s,accepted);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			log.info("accept queue is full, closing "+Settings.socketAddress(s));
+			close(s);
+		}
+	}
+
+	private void handshake(Socket s, long accepted){
+		try {
+			// time spent waiting for a thread counts too, the client has been waiting all along
+			int left = Settings.getHandshakeTimeout()-(int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-accepted);
+			if(left<=0) throw new SocketTimeoutException("waited too long for a handshake thread");
+			s.setSoTimeout(left);
+			Control.getInstance().incomingConnection(s);
+			latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-accepted));
+		} catch (SocketTimeoutException e) {
+			timedOut();
+			log.info("no handshake from "+Settings.socketAddress(s)+" in "+Settings.getHandshakeTimeout()+" milliseconds, closing");
+			close(s);
+		} catch (IOException e) {
+			log.debug("handshake with "+Settings.socketAddress(s)+" failed: "+e);
+			close(s);
+		} catch (RuntimeException e) {
+			log.error("handshake with "+Settings.socketAddress(s)+" failed: "+e);
+			close(s);
+		}
+	}
+
+	private static void close(Socket s){
+		try {
+			s.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	static void timedOut(){
+		timedOut.incrementAndGet();
+	}
+
+	int getQueued(){
+		return executor.getQueue().size();
+	}
+
+	static long getTimedOut(){
+		return timedOut.get();
+	}
+
+	static long getRejected(){
+		return rejected.get();
+	}
+
+	void shutdown(){
+		executor.shutdownNow();
+	}
+}
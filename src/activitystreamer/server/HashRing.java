@@ -0,0 +1,107 @@
+package activitystreamer.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * A consistent hash ring of server ids. Each server is placed on the ring at a
+ * number of points and a key belongs to the first server at or after the key's
+ * own hash, so when a server joins only the keys next to its points move.
+ *
+ * The hash only depends on the bytes of the id and the key, every server that
+ * knows the same ids agrees on who owns a key.
+ */
+public class HashRing {
+	private static final int POINTS = 64;
+
+	private final Set<String> members = new HashSet<String>();
+	// replaced as a whole whenever a server joins, so lookups never need a lock
+	private volatile Points points = new Points(new long[0],new String[0]);
+
+	private static class Points {
+		final long[] hashes;
+		final String[] owners;
+
+		Points(long[] hashes, String[] owners){
+			this.hashes = hashes;
+			this.owners = owners;
+		}
+	}
+
+	/*
+	 * add a server to the ring, returns false if it was already on it
+	 */
+	public synchronized boolean add(String id){
+		if(!members.add(id)) return false;
+		rebuild();
+		return true;
+	}
+
+	public synchronized boolean remove(String id){
+		if(!members.remove(id)) return false;
+		rebuild();
+		return true;
+	}
+
+	/*
+	 * the server that owns key, or null if the ring is empty
+	 */
+	public String owner(String key){
+		Points p = points;
+		if(p.hashes.length==0) return null;
+		int i = Arrays.binarySearch(p.hashes,hash(key));
+		if(i<0) i = -i-1;
+		if(i==p.hashes.length) i = 0;
+		return p.owners[i];
+	}
+
+	private void rebuild(){
+		final long[] unsorted = new long[members.size()*POINTS];
+		String[] ids = new String[unsorted.length];
+		int n = 0;
+		for(String id : members){
+			for(int i=0;i<POINTS;i++){
+				unsorted[n] = hash(id+"#"+i);
+				ids[n] = id;
+				n++;
+			}
+		}
+		// sort the points and keep each owner with its point
+		Integer[] order = new Integer[n];
+		for(int i=0;i<n;i++){
+			order[i] = i;
+		}
+		Arrays.sort(order,new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return Long.compare(unsorted[a],unsorted[b]);
+			}
+		});
+		long[] h = new long[n];
+		String[] o = new String[n];
+		for(int i=0;i<n;i++){
+			h[i] = unsorted[order[i]];
+			o[i] = ids[order[i]];
+		}
+		points = new Points(h,o);
+	}
+
+	/*
+	 * 64 bit fnv-1a, finished off with murmur3's mix so nearby keys spread out
+	 */
+	static long hash(String key){
+		long h = 0xcbf29ce484222325L;
+		for(byte b : key.getBytes(StandardCharsets.UTF_8)){
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h>>>33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h>>>33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h>>>33;
+		return h;
+	}
+}
@@ -0,0 +1,42 @@
+package activitystreamer.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A histogram with power of two buckets, cheap enough to record into on every
+ * write from any number of threads. Bucket i counts the values up to 2^i.
+ */
+public class Histogram {
+	private static final int BUCKETS = 32;
+	private final String unit;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	public Histogram(String unit){
+		this.unit = unit;
+	}
+
+	public void record(long value){
+		int bucket = value<=1 ? 0 : 64-Long.numberOfLeadingZeros(value-1);
+		counts.incrementAndGet(Math.min(bucket,BUCKETS-1));
+	}
+
+	public long getCount(int bucket){
+		return counts.get(bucket);
+	}
+
+	/*
+	 * the buckets that have anything in them, as "<=upper:count"
+	 */
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<BUCKETS;i++){
+			long count = counts.get(i);
+			if(count==0) continue;
+			if(sb.length()>0) sb.append(' ');
+			sb.append("<=").append(1L<<i).append(':').append(count);
+		}
+		if(sb.length()==0) return "none";
+		return sb.append(' ').append(unit).toString();
+	}
+}
@@ -8,17 +8,22 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import activitystreamer.util.Settings;
+import activitystreamer.util.Threads;
 
-public class Listener extends Thread{
+public class Listener implements Runnable{
 	private static final Logger log = LogManager.getLogger();
 	private ServerSocket serverSocket=null;
 	private boolean term = false;
 	private int portnum;
+	private Thread thread;
+	private HandshakeStage handshakes;
 	
 	public Listener() throws IOException{
 		portnum = Settings.getLocalPort(); // keep our own copy in case it changes later
 		serverSocket = new ServerSocket(portnum);
-		start();
+		handshakes = new HandshakeStage();
+		thread = Threads.newThread(this,"listener");
+		thread.start();
 	}
 	
 	@Override
@@ -28,7 +33,8 @@ public class Listener extends Thread{
 			Socket clientSocket;
 			try {
 				clientSocket = serverSocket.accept();
-				Control.getInstance().incomingConnection(clientSocket);
+				// never wait for a new connection to say anything, the next one may be waiting
+				handshakes.submit(clientSocket);
 			} catch (IOException e) {
 				log.info("received exception, shutting down");
 				term=true;
@@ -38,7 +44,14 @@ public class Listener extends Thread{
 
 	public void setTerm(boolean term) {
 		this.term = term;
-		if(term) interrupt();
+		if(term){
+			thread.interrupt();
+			handshakes.shutdown();
+		}
+	}
+	
+	HandshakeStage getHandshakes(){
+		return handshakes;
 	}
 	
 	
@@ -0,0 +1,167 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The load of every other server, from the last SERVER_ANNOUNCE each one sent,
+ * for picking where to redirect a client. A server that has not announced
+ * within the expiry is taken to be gone and is never picked. It is remembered
+ * a while longer, as somewhere to reattach to if the link towards it breaks.
+ *
+ * An announce is only as fresh as the last activity interval, so every redirect
+ * to a server is counted against it until its next announce. A burst of logins
+ * then spreads over the servers instead of all going to whichever announced
+ * the lowest load.
+ *
+ * Loads are compared relative to capacity, so a server that can take twice the
+ * clients gets twice as many. The policies are:
+ *
+ *   least        the server with the lowest load for its capacity
+ *   two-choices  the better of two servers picked at random, nearly as even as
+ *                least but servers redirecting at once rarely pick the same one
+ *   weighted     a server at random, weighted by the capacity it has left
+ */
+public class LoadTable {
+	private final ConcurrentHashMap<String,Entry> servers = new ConcurrentHashMap<String,Entry>();
+	private final String policy;
+	private final long expiry;
+	private final long retain;
+
+	static class Entry {
+		private final ServerInfo info;
+		private final long seen;
+		private final AtomicInteger redirected = new AtomicInteger();
+
+		private Entry(ServerInfo info, long seen){
+			this.info = info;
+			this.seen = seen;
+		}
+
+		ServerInfo getInfo(){
+			return info;
+		}
+
+		/*
+		 * the announced load plus the clients sent there since
+		 */
+		int getLoad(){
+			return info.getLoad()+redirected.get();
+		}
+
+		void redirected(){
+			redirected.incrementAndGet();
+		}
+
+		/*
+		 * load per unit of capacity
+		 */
+		double utilisation(){
+			return (double) getLoad()/info.getCapacity();
+		}
+	}
+
+	/*
+	 * expiry and retain are in milliseconds
+	 */
+	public LoadTable(String policy, long expiry, long retain){
+		this.policy = policy;
+		this.expiry = expiry;
+		this.retain = Math.max(expiry,retain);
+	}
+
+	public void update(ServerInfo info){
+		servers.put(info.getId(),new Entry(info,System.currentTimeMillis()));
+	}
+
+	/*
+	 * what the server last announced, or null if it is not remembered
+	 */
+	public ServerInfo get(String id){
+		Entry e = servers.get(id);
+		return e==null ? null : e.getInfo();
+	}
+
+	/*
+	 * whether the server has announced within the expiry
+	 */
+	public boolean isLive(String id){
+		Entry e = servers.get(id);
+		return e!=null && e.seen>=System.currentTimeMillis()-expiry;
+	}
+
+	/*
+	 * the server the policy picks, or null if no server has announced recently
+	 */
+	Entry select(){
+		List<Entry> live = live(expiry);
+		if(live.isEmpty()) return null;
+		if(policy.equals("two-choices")){
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Entry a = live.get(random.nextInt(live.size()));
+			Entry b = live.get(random.nextInt(live.size()));
+			return a.utilisation()<=b.utilisation() ? a : b;
+		}
+		if(policy.equals("weighted")){
+			long total = 0;
+			for(Entry e : live){
+				total += spare(e);
+			}
+			if(total>0){
+				long pick = ThreadLocalRandom.current().nextLong(total);
+				for(Entry e : live){
+					pick -= spare(e);
+					if(pick<0) return e;
+				}
+			}
+			// every server is full, fall back to the least loaded
+		}
+		Entry least = null;
+		for(Entry e : live){
+			if(least==null || e.utilisation()<least.utilisation()) least = e;
+		}
+		return least;
+	}
+
+	/*
+	 * every server that is still remembered
+	 */
+	public List<ServerInfo> servers(){
+		List<ServerInfo> servers = new ArrayList<ServerInfo>();
+		for(Entry e : live(retain)){
+			servers.add(e.getInfo());
+		}
+		return servers;
+	}
+
+	private static long spare(Entry e){
+		return Math.max(0,e.getInfo().getCapacity()-e.getLoad());
+	}
+
+	/*
+	 * the servers that have announced within maxAge milliseconds, forgetting
+	 * any that are too old to be remembered at all
+	 */
+	private List<Entry> live(long maxAge){
+		long now = System.currentTimeMillis();
+		List<Entry> live = new ArrayList<Entry>(servers.size());
+		for(Map.Entry<String,Entry> server : servers.entrySet()){
+			Entry e = server.getValue();
+			if(e.seen<now-retain){
+				// unless a fresh announce has just replaced it
+				servers.remove(server.getKey(),e);
+			} else if(e.seen>=now-maxAge){
+				live.add(e);
+			}
+		}
+		return live;
+	}
+
+	public int size(){
+		return servers.size();
+	}
+}
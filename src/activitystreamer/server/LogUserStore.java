@@ -0,0 +1,451 @@
+package activitystreamer.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+import activitystreamer.util.Threads;
+
+/*
+ * Users kept in memory and made durable with a write-ahead log, so they survive
+ * a restart. Every change is appended to the log before the caller gets its answer,
+ * a single syncer thread writes whatever has been appended since it last ran
+ * and syncs it, so any number of changes share one fsync (group commit).
+ * The sync policy decides how long a caller waits:
+ *
+ *   always    until its change has been synced to disk
+ *   interval  not at all, the log is synced every sync interval
+ *   never     not at all, the log is written every sync interval and the
+ *             operating system decides when it reaches the disk
+ *
+ * Once the log passes the snapshot size the syncer starts a new log and a
+ * snapshot of every user is written in the background, after which the older
+ * logs and snapshots are deleted. Snapshot n holds everything from before log n
+ * was started, so startup maps the newest complete snapshot into memory and
+ * replays the logs from its generation on. Replaying is safe even for changes
+ * the snapshot already has, a log only holds "set" and "remove if" records.
+ *
+ * A log record is an op byte, the username as a length and utf-8 bytes, the
+ * 16 byte credential and a crc32 of all of that. A snapshot record is just
+ * the username and credential. Replay stops at the first torn or
+ * corrupt record, which can only be the tail of the last log.
+ */
+public class LogUserStore implements UserStore, Runnable {
+	private static final Logger log = LogManager.getLogger();
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final int SNAPSHOT_MAGIC = 0x55534e51;
+	// count, crc and magic
+	private static final int TRAILER = 16;
+
+	private static final int CREDENTIAL = 16;
+
+	private final CredentialTable users;
+	private final File dir;
+	private final String sync;
+	private final long syncInterval;
+	private final long snapshotBytes;
+	// all guarded by this
+	private ByteBuffer pending = ByteBuffer.allocate(64*1024);
+	private ByteBuffer spare = ByteBuffer.allocate(64*1024);
+	private long appended = 0;
+	private long synced = 0;
+	private boolean closed = false;
+	// only the syncer thread touches the log once the store is open
+	private FileChannel wal;
+	private long walGen;
+	private long walSize;
+	private final AtomicBoolean snapshotting = new AtomicBoolean(false);
+	private final Thread syncer;
+
+	public LogUserStore(File dir) throws IOException{
+		this.dir = dir;
+		this.sync = Settings.getWalSync();
+		this.syncInterval = Settings.getWalSyncInterval();
+		this.snapshotBytes = Settings.getSnapshotBytes();
+		if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("can not create "+dir);
+		long start = System.currentTimeMillis();
+		users = recover();
+		log.info("loaded "+users.size()+" users from "+dir+" in "+(System.currentTimeMillis()-start)+" milliseconds");
+		syncer = Threads.newThread(this,"user-log");
+		syncer.start();
+	}
+
+	public boolean contains(String username){
+		return users.contains(username);
+	}
+
+	public boolean matches(String username, String secret){
+		long[] c = CredentialTable.hash(username,secret);
+		return users.matches(username,c[0],c[1]);
+	}
+
+	public String getCredential(String username){
+		return users.get(username);
+	}
+
+	public boolean putIfAbsent(String username, String secret){
+		long[] c = CredentialTable.hash(username,secret);
+		long seq;
+		synchronized(this){
+			if(!users.putIfAbsent(username,c[0],c[1])) return false;
+			seq = append(PUT,username,c);
+		}
+		awaitSync(seq);
+		return true;
+	}
+
+	public void put(String username, String secret){
+		put(username,CredentialTable.hash(username,secret));
+	}
+
+	public void putCredential(String username, String credential){
+		long[] c = CredentialTable.fromHex(credential);
+		if(c==null) throw new IllegalArgumentException("not a credential: "+credential);
+		put(username,c);
+	}
+
+	private void put(String username, long[] c){
+		long seq;
+		synchronized(this){
+			users.put(username,c[0],c[1]);
+			seq = append(PUT,username,c);
+		}
+		awaitSync(seq);
+	}
+
+	public boolean remove(String username, String secret){
+		long[] c = CredentialTable.hash(username,secret);
+		long seq;
+		synchronized(this){
+			if(!users.remove(username,c[0],c[1])) return false;
+			seq = append(REMOVE,username,c);
+		}
+		awaitSync(seq);
+		return true;
+	}
+
+	public int size(){
+		return users.size();
+	}
+
+	public Iterable<Map.Entry<String,String>> entries(){
+		return users.entries();
+	}
+
+	public void close(){
+		synchronized(this){
+			if(closed) return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			syncer.join();
+			wal.force(true);
+			wal.close();
+		} catch (InterruptedException e) {
+			log.error("interrupted closing the user log");
+		} catch (IOException e) {
+			log.error("failed to close the user log: "+e);
+		}
+	}
+
+	/*
+	 * add a record to what the syncer writes next, the map and the log change under
+	 * the same lock so the log has changes to a user in the order they happened
+	 */
+	private long append(byte op, String username, long[] credential){
+		byte[] u = username.getBytes(StandardCharsets.UTF_8);
+		int length = 1+4+u.length+CREDENTIAL+4;
+		if(pending.remaining()<length){
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity()*2,pending.position()+length));
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+		int start = pending.position();
+		pending.put(op).putInt(u.length).put(u).putLong(credential[0]).putLong(credential[1]);
+		CRC32 crc = new CRC32();
+		crc.update(pending.array(),start,length-4);
+		pending.putInt((int) crc.getValue());
+		appended++;
+		notifyAll();
+		return appended;
+	}
+
+	private void awaitSync(long seq){
+		if(!sync.equals("always")) return;
+		synchronized(this){
+			while(synced<seq && !closed){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * the syncer, writes and syncs everything appended since it last ran
+	 */
+	@Override
+	public void run(){
+		while(true){
+			ByteBuffer batch;
+			long upto;
+			boolean last;
+			synchronized(this){
+				try {
+					if(sync.equals("always")){
+						while(pending.position()==0 && !closed) wait();
+					} else if(!closed){
+						wait(syncInterval);
+					}
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+				last = closed;
+				batch = pending;
+				pending = spare;
+				spare = batch;
+				upto = appended;
+			}
+			try {
+				batch.flip();
+				walSize += batch.remaining();
+				while(batch.hasRemaining()){
+					wal.write(batch);
+				}
+				if(!sync.equals("never") && upto>synced) wal.force(false);
+			} catch (IOException e) {
+				log.error("failed to write the user log: "+e);
+			}
+			batch.clear();
+			synchronized(this){
+				synced = upto;
+				notifyAll();
+			}
+			if(last) return;
+			if(walSize>=snapshotBytes && snapshotting.compareAndSet(false,true)){
+				try {
+					startSnapshot();
+				} catch (IOException e) {
+					log.error("failed to start a new user log: "+e);
+					snapshotting.set(false);
+				}
+			}
+		}
+	}
+
+	/*
+	 * move on to a new log and snapshot everything that came before it
+	 */
+	private void startSnapshot() throws IOException{
+		wal.force(true);
+		FileChannel next = openWal(walGen+1);
+		wal.close();
+		wal = next;
+		walGen++;
+		walSize = 0;
+		final long gen = walGen;
+		Threads.newThread(new Runnable(){
+			public void run(){
+				try {
+					writeSnapshot(gen);
+					deleteBefore(gen);
+				} catch (IOException e) {
+					log.error("failed to write user snapshot "+gen+": "+e);
+				} finally {
+					snapshotting.set(false);
+				}
+			}
+		},"user-snapshot").start();
+	}
+
+	private void writeSnapshot(long gen) throws IOException{
+		long start = System.currentTimeMillis();
+		File tmp = new File(dir,"snapshot-"+gen+".tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		CRC32 crc = new CRC32();
+		long count = 0;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file,1024*1024));
+			for(Map.Entry<String,String> user : users.entries()){
+				byte[] u = user.getKey().getBytes(StandardCharsets.UTF_8);
+				long[] c = CredentialTable.fromHex(user.getValue());
+				byte[] record = ByteBuffer.allocate(4+u.length+CREDENTIAL).putInt(u.length).put(u).putLong(c[0]).putLong(c[1]).array();
+				crc.update(record,0,record.length);
+				out.write(record);
+				count++;
+			}
+			out.writeLong(count);
+			out.writeInt((int) crc.getValue());
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.flush();
+			file.getChannel().force(true);
+		} finally {
+			file.close();
+		}
+		if(!tmp.renameTo(new File(dir,"snapshot-"+gen))) throw new IOException("can not rename "+tmp);
+		log.info("wrote snapshot "+gen+" of "+count+" users in "+(System.currentTimeMillis()-start)+" milliseconds");
+	}
+
+	private void deleteBefore(long gen){
+		for(Map.Entry<Long,File> f : list("wal-").entrySet()){
+			if(f.getKey()<gen) f.getValue().delete();
+		}
+		for(Map.Entry<Long,File> f : list("snapshot-").entrySet()){
+			if(f.getKey()<gen) f.getValue().delete();
+		}
+	}
+
+	/*
+	 * load the newest complete snapshot and replay the logs after it
+	 */
+	private CredentialTable recover() throws IOException{
+		CredentialTable loaded = null;
+		long base = 0;
+		for(Map.Entry<Long,File> f : list("snapshot-").descendingMap().entrySet()){
+			loaded = loadSnapshot(f.getValue());
+			if(loaded!=null){
+				base = f.getKey();
+				break;
+			}
+			log.error("snapshot "+f.getValue()+" is incomplete, trying an older one");
+		}
+		if(loaded==null) loaded = new CredentialTable(1024);
+		walGen = base;
+		for(Map.Entry<Long,File> f : list("wal-").entrySet()){
+			if(f.getKey()<base) continue;
+			replay(f.getValue(),loaded);
+			walGen = f.getKey();
+		}
+		wal = openWal(walGen);
+		walSize = wal.size();
+		return loaded;
+	}
+
+	private FileChannel openWal(long gen) throws IOException{
+		FileChannel channel = new RandomAccessFile(new File(dir,"wal-"+gen),"rw").getChannel();
+		channel.position(channel.size());
+		return channel;
+	}
+
+	/*
+	 * returns null if the snapshot is not complete
+	 */
+	private CredentialTable loadSnapshot(File file) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file,"r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if(size<TRAILER) return null;
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+			buf.position((int) (size-TRAILER));
+			long count = buf.getLong();
+			int expected = buf.getInt();
+			if(buf.getInt()!=SNAPSHOT_MAGIC) return null;
+			CRC32 crc = new CRC32();
+			byte[] chunk = new byte[64*1024];
+			buf.position(0);
+			while(buf.position()<size-TRAILER){
+				int n = (int) Math.min(chunk.length,size-TRAILER-buf.position());
+				buf.get(chunk,0,n);
+				crc.update(chunk,0,n);
+			}
+			if((int) crc.getValue()!=expected) return null;
+			CredentialTable loaded = new CredentialTable((int) Math.min(1<<28,count));
+			buf.position(0);
+			for(long i=0;i<count;i++){
+				byte[] u = new byte[buf.getInt()];
+				buf.get(u);
+				loaded.put(new String(u,StandardCharsets.UTF_8),buf.getLong(),buf.getLong());
+			}
+			return loaded;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * apply a log's records to users and cut off a torn tail
+	 */
+	private void replay(File file, CredentialTable users) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file,"rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+			int valid = 0;
+			int records = 0;
+			while(buf.remaining()>=1+4+CREDENTIAL+4){
+				int start = buf.position();
+				byte op = buf.get();
+				int ulen = buf.getInt();
+				if(ulen<0 || ulen>buf.remaining()-CREDENTIAL-4) break;
+				byte[] u = new byte[ulen];
+				buf.get(u);
+				long high = buf.getLong();
+				long low = buf.getLong();
+				int expected = buf.getInt();
+				byte[] record = new byte[buf.position()-4-start];
+				buf.position(start);
+				buf.get(record);
+				buf.getInt();
+				CRC32 crc = new CRC32();
+				crc.update(record,0,record.length);
+				if((int) crc.getValue()!=expected) break;
+				String username = new String(u,StandardCharsets.UTF_8);
+				if(op==PUT) users.put(username,high,low);
+				else if(op==REMOVE) users.remove(username,high,low);
+				else break;
+				valid = buf.position();
+				records++;
+			}
+			if(valid<size){
+				log.error("user log "+file+" has a torn tail, dropping "+(size-valid)+" bytes");
+				buf = null;
+				channel.truncate(valid);
+			}
+			log.debug("replayed "+records+" records from "+file);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * the files named prefix followed by a generation, by generation
+	 */
+	private TreeMap<Long,File> list(String prefix){
+		TreeMap<Long,File> files = new TreeMap<Long,File>();
+		File[] all = dir.listFiles();
+		if(all==null) return files;
+		for(File f : all){
+			String name = f.getName();
+			if(!name.startsWith(prefix)) continue;
+			try {
+				files.put(Long.parseLong(name.substring(prefix.length())),f);
+			} catch (NumberFormatException e) {
+				// a temporary file
+			}
+		}
+		return files;
+	}
+}
@@ -0,0 +1,55 @@
+package activitystreamer.server;
+
+import java.util.Map;
+
+/*
+ * Users kept only in memory, they are gone when the server stops.
+ */
+public class MemoryUserStore implements UserStore {
+	private final CredentialTable users = new CredentialTable(1024);
+
+	public boolean contains(String username){
+		return users.contains(username);
+	}
+
+	public boolean matches(String username, String secret){
+		long[] c = CredentialTable.hash(username,secret);
+		return users.matches(username,c[0],c[1]);
+	}
+
+	public String getCredential(String username){
+		return users.get(username);
+	}
+
+	public boolean putIfAbsent(String username, String secret){
+		long[] c = CredentialTable.hash(username,secret);
+		return users.putIfAbsent(username,c[0],c[1]);
+	}
+
+	public void put(String username, String secret){
+		long[] c = CredentialTable.hash(username,secret);
+		users.put(username,c[0],c[1]);
+	}
+
+	public void putCredential(String username, String credential){
+		long[] c = CredentialTable.fromHex(credential);
+		if(c==null) throw new IllegalArgumentException("not a credential: "+credential);
+		users.put(username,c[0],c[1]);
+	}
+
+	public boolean remove(String username, String secret){
+		long[] c = CredentialTable.hash(username,secret);
+		return users.remove(username,c[0],c[1]);
+	}
+
+	public int size(){
+		return users.size();
+	}
+
+	public Iterable<Map.Entry<String,String>> entries(){
+		return users.entries();
+	}
+
+	public void close(){
+	}
+}
@@ -0,0 +1,321 @@
+package activitystreamer.server;
+
+import java.util.Arrays;
+
+import org.json.simple.JSONValue;
+
+/*
+ * A decoded protocol message. The protocol's messages are flat objects, so rather
+ * than a map we keep one slot per field we know about. The activity is never
+ * parsed, we only remember where it is in the original line so it can be
+ * forwarded exactly as it arrived.
+ *
+ * A message that arrived as a binary frame keeps the payload instead, so it can
+ * be forwarded to other binary links as it is, and only builds the json line if
+ * something asks for it.
+ *
+ * Decoding resolves the command and validate checks the fields the command needs
+ * and parses the numeric ones, so handlers get a message they can use straight away.
+ *
+ * A message is reused for every line read from a connection, so nothing may hold
+ * on to it after the message has been processed.
+ */
+public class Message {
+	public static final int COMMAND = 0;
+	public static final int USERNAME = 1;
+	public static final int SECRET = 2;
+	public static final int ID = 3;
+	public static final int LOAD = 4;
+	public static final int HOSTNAME = 5;
+	public static final int PORT = 6;
+	public static final int INFO = 7;
+	public static final int SERVER = 8;
+	public static final int ACTIVITY = 9;
+	public static final int CODEC = 10;
+	public static final int COMPRESSION = 11;
+	public static final int RID = 12;
+	public static final int DIGEST = 13;
+	public static final int USERS = 14;
+	public static final int CAPACITY = 15;
+	public static final int DEPTH = 16;
+	public static final int AID = 17;
+	public static final int PARENT = 18;
+	public static final int SERVERS = 19;
+	public static final int TOPIC = 20;
+	public static final int TOPICS = 21;
+	public static final int FILTER = 22;
+	public static final int RESUME = 23;
+	static final int FIELDS = 24;
+	static final String[] NAMES = {"command","username","secret","id","load","hostname","port","info","server","activity","codec","compression","rid","digest","users","capacity","depth","aid","parent","servers","topic","topics","filter","resume"};
+
+	private String source;
+	private byte[] binary;
+	// the raw activity of a binary message, there is no line to slice it out of
+	private String activity;
+	private Command type;
+	private int load;
+	private int port;
+	private int capacity;
+	private int depth;
+	private final String[] values = new String[FIELDS];
+	private int activityStart = -1;
+	private int activityEnd = -1;
+
+	void clear(String line){
+		source = line;
+		binary = null;
+		activity = null;
+		type = null;
+		load = -1;
+		port = -1;
+		capacity = -1;
+		depth = -1;
+		Arrays.fill(values,null);
+		activityStart = -1;
+		activityEnd = -1;
+	}
+
+	void set(int field, String value){
+		values[field] = value;
+		if(field==COMMAND) type = Command.of(value);
+	}
+
+	void clear(byte[] payload){
+		clear((String) null);
+		binary = payload;
+	}
+
+	void setActivity(int start, int end){
+		activityStart = start;
+		activityEnd = end;
+	}
+
+	void setActivity(String raw){
+		activity = raw;
+	}
+
+	/*
+	 * check the message has everything its command needs,
+	 * returns what is wrong with it or null if it is fine
+	 */
+	String validate(){
+		for(int field : type.getRequired()){
+			if(!has(field)) return "no "+NAMES[field];
+		}
+		try {
+			if(has(LOAD)) load = Integer.parseInt(values[LOAD]);
+		} catch (NumberFormatException e){
+			return "load is not a number";
+		}
+		try {
+			if(has(PORT)) port = Integer.parseInt(values[PORT]);
+		} catch (NumberFormatException e){
+			return "port is not a number";
+		}
+		try {
+			if(has(CAPACITY)) capacity = Integer.parseInt(values[CAPACITY]);
+		} catch (NumberFormatException e){
+			return "capacity is not a number";
+		}
+		try {
+			if(has(DEPTH)) depth = Integer.parseInt(values[DEPTH]);
+		} catch (NumberFormatException e){
+			return "depth is not a number";
+		}
+		if(type==Command.ACTIVITY_MESSAGE && !isActivityObject()) return "activity is not an object";
+		return null;
+	}
+
+	public boolean has(int field){
+		if(field==ACTIVITY) return activity!=null || activityStart>=0;
+		return values[field]!=null;
+	}
+
+	/*
+	 * the line the message was decoded from, forwarding this avoids encoding it again
+	 */
+	public String getSource(){
+		if(source==null && binary!=null) source = toJson();
+		return source;
+	}
+
+	/*
+	 * the payload of the binary frame the message was decoded from, or null
+	 */
+	byte[] getBinary(){
+		return binary;
+	}
+
+	/*
+	 * the value of any field but the activity, as it was in the message
+	 */
+	String getValue(int field){
+		return values[field];
+	}
+
+	private String toJson(){
+		StringBuilder sb = new StringBuilder("{");
+		for(int field=0;field<FIELDS;field++){
+			if(field==ACTIVITY || values[field]==null) continue;
+			if(sb.length()>1) sb.append(',');
+			sb.append('"').append(NAMES[field]).append("\":\"").append(JSONValue.escape(values[field])).append('"');
+		}
+		if(activity!=null){
+			if(sb.length()>1) sb.append(',');
+			sb.append("\"activity\":").append(activity);
+		}
+		return sb.append('}').toString();
+	}
+
+	public String getCommand(){
+		return values[COMMAND];
+	}
+
+	/*
+	 * null if the command is not one we know
+	 */
+	public Command getType(){
+		return type;
+	}
+
+	public String getUsername(){
+		return values[USERNAME];
+	}
+
+	public String getSecret(){
+		return values[SECRET];
+	}
+
+	public String getId(){
+		return values[ID];
+	}
+
+	public int getLoad(){
+		return load;
+	}
+
+	public String getHostname(){
+		return values[HOSTNAME];
+	}
+
+	public int getPort(){
+		return port;
+	}
+
+	/*
+	 * -1 if the message has no capacity
+	 */
+	public int getCapacity(){
+		return capacity;
+	}
+
+	/*
+	 * how many links the announcing server is from the root of the tree, -1 if not known
+	 */
+	public int getDepth(){
+		return depth;
+	}
+
+	public String getInfo(){
+		return values[INFO];
+	}
+
+	public String getServer(){
+		return values[SERVER];
+	}
+
+	public String getCodec(){
+		return values[CODEC];
+	}
+
+	public String getCompression(){
+		return values[COMPRESSION];
+	}
+
+	/*
+	 * the id that ties the messages of one registration together
+	 */
+	public String getRid(){
+		return values[RID];
+	}
+
+	/*
+	 * the id of a flooded message, the same in every copy so a server can tell it
+	 * has already handled one that reached it over another link
+	 */
+	public String getAid(){
+		return values[AID];
+	}
+
+	/*
+	 * the id of an announcing server's parent in the tree
+	 */
+	public String getParent(){
+		return values[PARENT];
+	}
+
+	/*
+	 * the digest of the users a joining server already has
+	 */
+	public String getDigest(){
+		return values[DIGEST];
+	}
+
+	/*
+	 * a chunk of users being synced, a json array of username and credential pairs
+	 */
+	public String getUsers(){
+		return values[USERS];
+	}
+
+	/*
+	 * the announces in a SERVER_DIGEST, see ServerDigest
+	 */
+	public String getServers(){
+		return values[SERVERS];
+	}
+
+	/*
+	 * the topic an activity is about, or a client subscribes to, null for an
+	 * activity that goes to everyone
+	 */
+	public String getTopic(){
+		return values[TOPIC];
+	}
+
+	/*
+	 * an announcing server's TopicSummary
+	 */
+	public String getTopics(){
+		return values[TOPICS];
+	}
+
+	/*
+	 * a client's filter on the activities it gets, see ActivityFilters
+	 */
+	public String getFilter(){
+		return values[FILTER];
+	}
+
+	/*
+	 * the aid of the last activity a client logging in again got, see ActivityLog
+	 */
+	public String getResume(){
+		return values[RESUME];
+	}
+
+	/*
+	 * the activity exactly as it appears in the message, an object for
+	 * ACTIVITY_MESSAGE and a string holding an object for ACTIVITY_BROADCAST
+	 */
+	public String getRawActivity(){
+		if(activity!=null) return activity;
+		if(activityStart<0) return null;
+		return source.substring(activityStart,activityEnd);
+	}
+
+	public boolean isActivityObject(){
+		if(activity!=null) return activity.startsWith("{");
+		return activityStart>=0 && source.charAt(activityStart)=='{';
+	}
+}
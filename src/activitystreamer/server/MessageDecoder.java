@@ -0,0 +1,193 @@
+package activitystreamer.server;
+
+/*
+ * A streaming decoder for the protocol's flat json messages. It walks the line
+ * once, copies out only the fields that Message has a slot for and skips over
+ * everything else. The activity is skipped too, Message only records where it is.
+ *
+ * A decoder keeps its position between calls, so each thread needs its own.
+ */
+public class MessageDecoder {
+	private static final String[] NAMES = Message.NAMES;
+	private String s;
+	private int pos;
+	private int len;
+
+	/*
+	 * decode line into m, returns false if the line is not a json object
+	 */
+	public boolean decode(String line, Message m){
+		m.clear(line);
+		if(line==null) return false;
+		s = line;
+		pos = 0;
+		len = line.length();
+		try {
+			skipWhitespace();
+			if(next()!='{') return false;
+			skipWhitespace();
+			if(peek()=='}'){
+				pos++;
+			} else {
+				while(true){
+					skipWhitespace();
+					int field = readKey();
+					skipWhitespace();
+					if(next()!=':') return false;
+					skipWhitespace();
+					int start = pos;
+					if(field==Message.ACTIVITY){
+						skipValue();
+						m.setActivity(start,pos);
+					} else if(peek()=='"'){
+						String value = readString();
+						if(field>=0) m.set(field,value);
+					} else {
+						skipValue();
+						if(field>=0) m.set(field,s.substring(start,pos));
+					}
+					skipWhitespace();
+					char c = next();
+					if(c=='}') break;
+					if(c!=',') return false;
+				}
+			}
+			skipWhitespace();
+			return pos==len;
+		} catch (StringIndexOutOfBoundsException e){
+			// ran off the end of the line
+			return false;
+		} catch (IllegalArgumentException e){
+			return false;
+		} finally {
+			s = null;
+		}
+	}
+
+	private char peek(){
+		return s.charAt(pos);
+	}
+
+	private char next(){
+		return s.charAt(pos++);
+	}
+
+	private void skipWhitespace(){
+		while(pos<len){
+			char c = s.charAt(pos);
+			if(c!=' ' && c!='\t' && c!='\n' && c!='\r') return;
+			pos++;
+		}
+	}
+
+	/*
+	 * read a key and return its field, or -1 if Message has no slot for it,
+	 * keys without escapes are matched in place without building a string
+	 */
+	private int readKey(){
+		if(peek()!='"') throw new IllegalArgumentException("expected a key");
+		int start = pos+1;
+		int end = start;
+		while(true){
+			char c = s.charAt(end);
+			if(c=='"') break;
+			if(c=='\\') return fieldOf(readString());
+			end++;
+		}
+		pos = end+1;
+		int n = end-start;
+		for(int i=0;i<NAMES.length;i++){
+			if(NAMES[i].length()==n && s.regionMatches(start,NAMES[i],0,n)) return i;
+		}
+		return -1;
+	}
+
+	private static int fieldOf(String key){
+		for(int i=0;i<NAMES.length;i++){
+			if(NAMES[i].equals(key)) return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * read a json string, only building a new string when it has escapes in it
+	 */
+	private String readString(){
+		pos++;
+		int start = pos;
+		while(true){
+			char c = s.charAt(pos);
+			if(c=='"'){
+				pos++;
+				return s.substring(start,pos-1);
+			}
+			if(c=='\\') break;
+			pos++;
+		}
+		StringBuilder sb = new StringBuilder(s.substring(start,pos));
+		while(true){
+			char c = next();
+			if(c=='"') return sb.toString();
+			if(c!='\\'){
+				sb.append(c);
+				continue;
+			}
+			c = next();
+			switch(c){
+				case '"': sb.append('"'); break;
+				case '\\': sb.append('\\'); break;
+				case '/': sb.append('/'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u':
+					sb.append((char) Integer.parseInt(s.substring(pos,pos+4),16));
+					pos += 4;
+					break;
+				default:
+					throw new IllegalArgumentException("bad escape");
+			}
+		}
+	}
+
+	private void skipString(){
+		pos++;
+		while(true){
+			char c = next();
+			if(c=='"') return;
+			if(c=='\\') pos++;
+		}
+	}
+
+	/*
+	 * move past any json value without looking at what is in it
+	 */
+	private void skipValue(){
+		char c = peek();
+		if(c=='"'){
+			skipString();
+		} else if(c=='{' || c=='['){
+			int depth = 0;
+			do {
+				c = peek();
+				if(c=='"'){
+					skipString();
+					continue;
+				}
+				if(c=='{' || c=='[') depth++;
+				if(c=='}' || c==']') depth--;
+				pos++;
+			} while(depth>0);
+		} else {
+			int start = pos;
+			while(pos<len){
+				c = s.charAt(pos);
+				if(c==',' || c=='}' || c==']' || c==' ' || c=='\t' || c=='\r' || c=='\n') break;
+				pos++;
+			}
+			if(pos==start) throw new IllegalArgumentException("expected a value");
+		}
+	}
+}
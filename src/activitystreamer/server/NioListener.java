@@ -0,0 +1,84 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/*
+ * Accepts connections for the nio engine and spreads them over a fixed pool of reactors,
+ * so the number of threads no longer grows with the number of connections.
+ */
+public class NioListener extends Thread{
+	private static final Logger log = LogManager.getLogger();
+	private ServerSocketChannel serverChannel=null;
+	private Reactor[] reactors;
+	private ExecutorService workers = null;
+	private int next = 0;
+	private boolean term = false;
+	private int portnum;
+
+	public NioListener() throws IOException{
+		portnum = Settings.getLocalPort(); // keep our own copy in case it changes later
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(portnum));
+		// messages are processed on the reactor threads themselves unless we have workers
+		if(Settings.getWorkerThreads()>0){
+			workers = Executors.newFixedThreadPool(Settings.getWorkerThreads());
+		}
+		reactors = new Reactor[Settings.getReactorThreads()];
+		for(int i=0;i<reactors.length;i++){
+			reactors[i] = new Reactor(i,workers);
+		}
+		start();
+	}
+
+	@Override
+	public void run() {
+		log.info("listening for new connections on "+portnum+" with "+reactors.length+" reactors");
+		while(!term){
+			SocketChannel channel = null;
+			try {
+				channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				Reactor reactor = reactors[next];
+				next = (next+1)%reactors.length;
+				Control.getInstance().incomingConnection(channel,reactor);
+			} catch (IOException e) {
+				log.info("received exception, shutting down");
+				term=true;
+			} catch (RuntimeException e) {
+				// only this connection is lost, the next one may be waiting
+				log.error("failed to take a new connection: "+e);
+				close(channel);
+			}
+		}
+		for(Reactor reactor : reactors){
+			reactor.setTerm(true);
+		}
+		if(workers!=null) workers.shutdown();
+	}
+
+	private static void close(SocketChannel channel){
+		if(channel==null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	public void setTerm(boolean term) {
+		this.term = term;
+		if(term) interrupt();
+	}
+
+
+}
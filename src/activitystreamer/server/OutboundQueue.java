@@ -0,0 +1,278 @@
+package activitystreamer.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import activitystreamer.util.Settings;
+
+/*
+ * The bounded queue of frames waiting to be written to one connection. Whoever
+ * sends a message only ever queues it here, the connection's writer (its writer
+ * thread, or the reactor for the nio engine) takes frames off in batches and
+ * writes each batch with a single write.
+ *
+ * What happens when the queue is full depends on the overflow policy:
+ * drop-oldest throws away the oldest queued frame, disconnect tells the caller
+ * to close the slow connection, and block waits for the writer to catch up.
+ * Only a thread engine reader may wait, it holds up no one but the client it reads
+ * for, and it waits at most BLOCK_LIMIT before the slow connection is disconnected.
+ * Anything else, a reactor, a worker or a timer, keeps the whole server going, and
+ * for it block is the same as disconnect.
+ *
+ * A writer that batches can wait for a batch to fill up, or for its window to
+ * pass, before it takes anything, see awaitBatch.
+ */
+public class OutboundQueue {
+	public static final String DROP_OLDEST = "drop-oldest";
+	public static final String DISCONNECT = "disconnect";
+	public static final String BLOCK = "block";
+
+	// across every connection, for reporting
+	private static final AtomicLong totalDrops = new AtomicLong();
+	private static final AtomicLong totalDisconnects = new AtomicLong();
+
+	private static final long BLOCK_LIMIT = 5000; // milliseconds
+	// set on the threads that may wait for a full queue
+	private static final ThreadLocal<Boolean> mayBlock = new ThreadLocal<Boolean>();
+
+	private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final int capacity;
+	private final String policy;
+	private boolean closed = false;
+	// bytes in the queued frames
+	private long bytes = 0;
+	// a writer is waiting in awaitBatch, so every offer has to wake it
+	private boolean batchWaiting = false;
+	private long drops = 0;
+	private int maxDepth = 0;
+
+	public OutboundQueue(){
+		this(Settings.getOutboundQueueSize(),Settings.getOverflowPolicy());
+	}
+
+	public OutboundQueue(int capacity, String policy){
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	/*
+	 * queue a frame, returns false if the queue is closed or the
+	 * connection should be disconnected for falling too far behind
+	 */
+	public boolean offer(ByteBuffer frame){
+		long waited = 0;
+		lock.lock();
+		try {
+			if(closed) return false;
+			while(frames.size()>=capacity){
+				if(policy.equals(DROP_OLDEST)){
+					if(!dropOldest()) break;
+					drops++;
+					totalDrops.incrementAndGet();
+				} else if(policy.equals(DISCONNECT) || mayBlock.get()==null){
+					drops++;
+					totalDisconnects.incrementAndGet();
+					return false;
+				} else {
+					if(waited==0) waited = System.nanoTime();
+					long left = TimeUnit.MILLISECONDS.toNanos(BLOCK_LIMIT)-(System.nanoTime()-waited);
+					if(left<=0){
+						drops++;
+						totalDisconnects.incrementAndGet();
+						return false;
+					}
+					try {
+						notFull.awaitNanos(left);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+					if(closed) return false;
+				}
+			}
+			frames.add(frame);
+			bytes += frame.remaining();
+			if(frames.size()>maxDepth) maxDepth = frames.size();
+			if(frames.size()==1 || batchWaiting) notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * let the calling thread wait when a queue with the block policy is full
+	 */
+	static void allowBlocking(){
+		mayBlock.set(Boolean.TRUE);
+	}
+
+	/*
+	 * drop the oldest frame that can be dropped, the compression marker changes how
+	 * everything after it is read so it always stays, returns false if nothing could go
+	 */
+	private boolean dropOldest(){
+		Iterator<ByteBuffer> it = frames.iterator();
+		while(it.hasNext()){
+			ByteBuffer frame = it.next();
+			if(frame!=Compressor.START){
+				it.remove();
+				bytes -= frame.remaining();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * move up to into.length frames, starting at into[offset], out of the queue
+	 * without waiting, returns the number of frames moved
+	 */
+	public int poll(ByteBuffer[] into, int offset){
+		lock.lock();
+		try {
+			int n = 0;
+			while(offset+n<into.length && !frames.isEmpty()){
+				into[offset+n] = frames.poll();
+				bytes -= into[offset+n].remaining();
+				n++;
+			}
+			if(n>0) notFull.signalAll();
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * wait until there is something to write, returns false if the queue was
+	 * closed and everything in it has already been taken
+	 */
+	public boolean await(long timeout) throws InterruptedException{
+		lock.lock();
+		try {
+			while(frames.isEmpty()){
+				if(closed) return false;
+				notEmpty.await(timeout,TimeUnit.MILLISECONDS);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * wait until at least maxFrames frames or maxBytes bytes are queued, or
+	 * window milliseconds have passed, whichever comes first
+	 */
+	public void awaitBatch(int maxFrames, long maxBytes, long window) throws InterruptedException{
+		long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(window);
+		lock.lock();
+		try {
+			batchWaiting = true;
+			while(!closed && frames.size()<maxFrames && bytes<maxBytes){
+				long left = deadline-System.nanoTime();
+				if(left<=0) break;
+				notEmpty.awaitNanos(left);
+			}
+		} finally {
+			batchWaiting = false;
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * stop accepting frames, whatever is already queued can still be taken
+	 */
+	public void close(){
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void clear(){
+		lock.lock();
+		try {
+			frames.clear();
+			bytes = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isClosed(){
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty(){
+		lock.lock();
+		try {
+			return frames.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size(){
+		lock.lock();
+		try {
+			return frames.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long bytes(){
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxDepth(){
+		lock.lock();
+		try {
+			return maxDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDrops(){
+		lock.lock();
+		try {
+			return drops;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public static long getTotalDrops(){
+		return totalDrops.get();
+	}
+
+	public static long getTotalDisconnects(){
+		return totalDisconnects.get();
+	}
+}
@@ -0,0 +1,287 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/*
+ * One of a small fixed pool of io threads used by the nio engine. Each reactor
+ * owns a selector and all of the connections registered with it, it reads
+ * json lines and binary frames straight out of the connection's buffer and hands
+ * them to Control.process, exactly like FrameReader does for the thread engine.
+ * When there is a worker pool the messages are processed on it through the
+ * connection's serial executor, so a slow message never holds up the selector.
+ *
+ * A server link with a batch window is not written as soon as something is
+ * queued, it lingers until its batch is full or the window has passed, and the
+ * reactor wakes up for the earliest window to release it.
+ */
+public class Reactor extends Thread {
+	private static final Logger log = LogManager.getLogger();
+	private Selector selector;
+	private ConcurrentLinkedQueue<Connection> registrations;
+	// every window is the same length, so the earliest deadline is always at the head
+	private ConcurrentLinkedQueue<Connection> lingering;
+	private ExecutorService workers;
+	private volatile boolean term = false;
+
+	public Reactor(int id, ExecutorService workers) throws IOException{
+		super("reactor-"+id);
+		this.workers = workers;
+		selector = Selector.open();
+		registrations = new ConcurrentLinkedQueue<Connection>();
+		lingering = new ConcurrentLinkedQueue<Connection>();
+		start();
+	}
+
+	/*
+	 * hand a new connection over to this reactor, can be called from any thread
+	 */
+	public void register(Connection con){
+		registrations.add(con);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run(){
+		while(!term){
+			try {
+				selector.select(releaseLingering());
+			} catch (IOException e) {
+				log.error("reactor "+getName()+" failed to select: "+e);
+				break;
+			}
+			registerPending();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()){
+				SelectionKey key = keys.next();
+				keys.remove();
+				Connection con = (Connection) key.attachment();
+				// the key can be cancelled by another thread closing the connection at any
+				// point, and whatever goes wrong with one connection must not stop the rest
+				try {
+					if(key.isValid() && key.isReadable()){
+						read(con);
+					}
+					if(key.isValid() && key.isWritable()){
+						flush(con);
+					}
+				} catch (CancelledKeyException e) {
+					close(con);
+				} catch (RuntimeException e) {
+					log.error("connection "+Settings.socketAddress(con.getSocket())+" failed: "+e);
+					close(con);
+				}
+			}
+		}
+		for(SelectionKey key : selector.keys()){
+			close((Connection) key.attachment());
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.error("reactor "+getName()+" failed to close its selector: "+e);
+		}
+	}
+
+	private void registerPending(){
+		Connection con;
+		while((con = registrations.poll())!=null){
+			if(!con.isOpen()) continue;
+			int ops = SelectionKey.OP_READ;
+			if(con.getWriteInterest().get()) ops |= SelectionKey.OP_WRITE;
+			if(con.isCloseAfterFlush()) ops = SelectionKey.OP_WRITE;
+			try {
+				con.setKey(con.getChannel().register(selector, ops, con));
+			} catch (ClosedChannelException e) {
+				log.error("connection "+Settings.socketAddress(con.getSocket())+" closed before registration");
+			}
+		}
+	}
+
+	/*
+	 * read whatever is available and process every complete frame in the buffer
+	 */
+	private void read(Connection con){
+		FrameReader frames = con.getFrames();
+		try {
+			if(frames.fill(con.getChannel())<0){
+				log.debug("connection closed to "+Settings.socketAddress(con.getSocket()));
+				close(con);
+				return;
+			}
+			while(frames.next()){
+				dispatch(con,frames.getLine(),frames.getPayload());
+				if(!con.isOpen() || con.isCloseAfterFlush()) return;
+			}
+		} catch (IOException e) {
+			log.error("connection "+Settings.socketAddress(con.getSocket())+" closed with exception: "+e);
+			close(con);
+		}
+	}
+
+	/*
+	 * process a json line or the payload of a binary frame, whichever is not null
+	 */
+	private void dispatch(final Connection con, final String line, final byte[] payload){
+		con.getExecutor().execute(new Runnable(){
+			public void run(){
+				// anything still queued after the connection was told to close is dropped
+				if(!con.isOpen() || con.isCloseAfterFlush()) return;
+				boolean close = line!=null ? Control.getInstance().process(con,line) : Control.getInstance().process(con,payload);
+				if(close){
+					closeAfterFlush(con);
+				}
+			}
+		});
+	}
+
+	/*
+	 * something was queued for the connection, make sure the reactor will write it,
+	 * can be called from any thread
+	 */
+	void wantWrite(Connection con){
+		if(con.getWriteInterest().compareAndSet(false,true)){
+			if(con.isBatching() && con.getOutbound().bytes()<Settings.getBatchBytes()){
+				con.setWriteDeadline(System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(Settings.getBatchWindow()));
+				con.getLingering().set(true);
+				lingering.add(con);
+				if(Thread.currentThread()!=this) selector.wakeup();
+				return;
+			}
+			interest(con,SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else if(con.getLingering().get() && con.getOutbound().bytes()>=Settings.getBatchBytes()
+				&& con.getLingering().compareAndSet(true,false)){
+			// the batch filled up before its window passed
+			interest(con,SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+	
+	/*
+	 * start writing every connection whose batch window has passed,
+	 * returns how long to wait for the next one, 0 if there is none
+	 */
+	private long releaseLingering(){
+		Connection con;
+		while((con = lingering.peek())!=null){
+			long left = con.getWriteDeadline()-System.nanoTime();
+			if(con.getLingering().get() && left>0){
+				return Math.max(1,TimeUnit.NANOSECONDS.toMillis(left));
+			}
+			lingering.poll();
+			if(con.getLingering().compareAndSet(true,false)){
+				interest(con,SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * write as much of the queue as the socket will take, a batch of frames at a
+	 * time with a single gathering write
+	 */
+	private void flush(Connection con){
+		ByteBuffer[] writing = con.getWriting();
+		try {
+			while(true){
+				int count = con.getWritingCount();
+				if(count==0 || !writing[count-1].hasRemaining()){
+					count = con.getOutbound().poll(writing,0);
+					if(con.isServerLink() && count>0) Connection.recordBatch(writing,count);
+					Compressor compressor = con.getCompressor();
+					if(compressor!=null && count>0){
+						// the whole batch goes out as one buffer
+						writing[0] = compressor.encode(writing,count);
+						Arrays.fill(writing,1,count,null);
+						count = 1;
+					}
+					for(int i=0;i<count;i++){
+						// frames can be shared with other connections, never move their position
+						writing[i] = writing[i].duplicate();
+					}
+					for(int i=count;i<writing.length && writing[i]!=null;i++){
+						writing[i] = null;
+					}
+					con.setWritingCount(count);
+					if(count==0) break;
+				}
+				con.getChannel().write(writing,0,count);
+				if(writing[count-1].hasRemaining()) return;
+			}
+		} catch (IOException e) {
+			log.error("connection "+Settings.socketAddress(con.getSocket())+" closed with exception: "+e);
+			close(con);
+			return;
+		}
+		if(con.isCloseAfterFlush()){
+			close(con);
+			return;
+		}
+		// clear the interest before looking at the queue again, so a frame queued in
+		// between is either seen here or sets the interest itself
+		interest(con,SelectionKey.OP_READ);
+		con.getWriteInterest().set(false);
+		if(!con.getOutbound().isEmpty()) wantWrite(con);
+	}
+
+	/*
+	 * stop reading from the connection and close it once everything queued has been written
+	 */
+	private void closeAfterFlush(Connection con){
+		if(!con.isOpen()) return;
+		con.setCloseAfterFlush(true);
+		con.getOutbound().close();
+		con.getWriteInterest().set(true);
+		interest(con,SelectionKey.OP_WRITE);
+	}
+
+	private void interest(Connection con, int ops){
+		SelectionKey key = con.getKey();
+		// not registered yet, registerPending will pick up the pending writes
+		if(key==null || !key.isValid()) return;
+		if(con.isCloseAfterFlush()) ops = SelectionKey.OP_WRITE;
+		try {
+			key.interestOps(ops);
+		} catch (CancelledKeyException e) {
+			return;
+		}
+		if(Thread.currentThread()!=this) selector.wakeup();
+	}
+
+	void close(Connection con){
+		if(!con.markClosed()) return;
+		con.getOutbound().close();
+		con.getOutbound().clear();
+		log.info("closing connection "+Settings.socketAddress(con.getSocket()));
+		if(con.getKey()!=null) con.getKey().cancel();
+		try {
+			con.getChannel().close();
+		} catch (IOException e) {
+			log.error("received exception closing the connection "+Settings.socketAddress(con.getSocket())+": "+e);
+		}
+		con.endCompression();
+		Control.getInstance().connectionClosed(con);
+	}
+
+	ExecutorService getWorkers() {
+		return workers;
+	}
+
+	public void setTerm(boolean term) {
+		this.term = term;
+		if(term) selector.wakeup();
+	}
+}
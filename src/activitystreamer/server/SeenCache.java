@@ -0,0 +1,76 @@
+package activitystreamer.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Remembers which messages have already been handled, so a message that reaches
+ * a server more than once is only forwarded the first time. Keys live in two
+ * generations, the current one and the one before it, and rotating drops the
+ * older generation, so the cache never grows past two generations however long
+ * the server runs. Rotate at least as often as it takes a message to cross the
+ * network and no copy is ever mistaken for a new message.
+ */
+public class SeenCache {
+	private static final int LOCKS = 64;
+	private final int maxEntries;
+	private final Object[] locks = new Object[LOCKS];
+	private volatile Generations generations = new Generations(newSet(),newSet());
+
+	/*
+	 * the current generation and the one before it, replaced together so a key is
+	 * never checked against one from before a rotation and the other from after
+	 */
+	private static class Generations {
+		final Set<String> current;
+		final Set<String> previous;
+
+		Generations(Set<String> current, Set<String> previous){
+			this.current = current;
+			this.previous = previous;
+		}
+	}
+
+	/*
+	 * maxEntries also forces a rotation, should a burst fill the current generation early
+	 */
+	public SeenCache(int maxEntries){
+		this.maxEntries = maxEntries;
+		for(int i=0;i<LOCKS;i++){
+			locks[i] = new Object();
+		}
+	}
+
+	/*
+	 * returns true only the first time key is seen
+	 */
+	public boolean firstTime(String key){
+		if(generations.previous.contains(key)) return false;
+		Set<String> c;
+		// a copy checked at the same time as another looks after that one has gone in
+		synchronized(locks[key.hashCode() & (LOCKS-1)]){
+			Generations g = generations;
+			if(g.previous.contains(key) || !g.current.add(key)) return false;
+			c = g.current;
+		}
+		if(c.size()>=maxEntries) rotate(c);
+		return true;
+	}
+
+	public synchronized void rotate(){
+		generations = new Generations(newSet(),generations.current);
+	}
+
+	/*
+	 * rotate if full is still the current generation and still full, another thread
+	 * may have rotated it out already
+	 */
+	private synchronized void rotate(Set<String> full){
+		if(generations.current==full && full.size()>=maxEntries) rotate();
+	}
+
+	private static Set<String> newSet(){
+		return Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	}
+}
@@ -0,0 +1,122 @@
+package activitystreamer.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Remembers the ids of the flooded messages a server has handled, so that on a
+ * mesh, where a message can arrive over more than one link, it is only handled
+ * and forwarded the first time. Like SeenCache it keeps two generations and
+ * rotating drops the older one, but each generation is a bloom filter of fixed
+ * size, so remembering a message costs a few bits however long its id is and
+ * nothing is ever allocated.
+ *
+ * A bloom filter can mistake a new id for one it has seen, which would drop the
+ * message. The filter is sized so that happens to fewer than one in a million
+ * messages while a generation holds no more than its capacity, and a generation
+ * that reaches its capacity early is rotated straight away.
+ */
+public class SeenFilter {
+	private static final double FALSE_POSITIVES = 1e-6;
+	private static final int LOCKS = 64;
+	private final int capacity;
+	private final int mask;
+	private final int hashes;
+	private final Object[] locks = new Object[LOCKS];
+	private volatile Generations generations;
+
+	private static class Generation {
+		final AtomicLongArray words;
+		final AtomicInteger count = new AtomicInteger();
+
+		Generation(int bits){
+			words = new AtomicLongArray(bits>>>6);
+		}
+
+		boolean contains(int h1, int h2, int hashes, int mask){
+			for(int i=0;i<hashes;i++){
+				int bit = (h1+i*h2) & mask;
+				if((words.get(bit>>>6) & 1L<<bit)==0) return false;
+			}
+			return true;
+		}
+
+		void add(int h1, int h2, int hashes, int mask){
+			for(int i=0;i<hashes;i++){
+				int bit = (h1+i*h2) & mask;
+				int word = bit>>>6;
+				long b = 1L<<bit;
+				while(true){
+					long w = words.get(word);
+					if((w & b)!=0 || words.compareAndSet(word,w,w | b)) break;
+				}
+			}
+		}
+	}
+
+	/*
+	 * the current generation and the one before it, replaced together so an id is
+	 * never checked against one from before a rotation and the other from after
+	 */
+	private static class Generations {
+		final Generation current;
+		final Generation previous;
+
+		Generations(Generation current, Generation previous){
+			this.current = current;
+			this.previous = previous;
+		}
+	}
+
+	/*
+	 * capacity is how many ids a generation should hold
+	 */
+	public SeenFilter(int capacity){
+		this.capacity = capacity;
+		// the optimal size and number of hashes for the false positive rate,
+		// the size rounded up to a power of two so a bit is just a mask away
+		double bits = -capacity*Math.log(FALSE_POSITIVES)/(Math.log(2)*Math.log(2));
+		int size = Integer.highestOneBit((int) Math.min(1<<30,Math.max(64,bits)-1))<<1;
+		this.mask = size-1;
+		this.hashes = (int) Math.max(1,Math.min(20,Math.round((double) size/capacity*Math.log(2))));
+		for(int i=0;i<LOCKS;i++){
+			locks[i] = new Object();
+		}
+		generations = new Generations(new Generation(size),new Generation(size));
+	}
+
+	/*
+	 * returns true only the first time id is seen
+	 */
+	public boolean firstTime(String id){
+		long h = HashRing.hash(id);
+		int h1 = (int) h;
+		// odd, so the probes never repeat before going all the way round
+		int h2 = (int) (h>>>32) | 1;
+		if(generations.previous.contains(h1,h2,hashes,mask)) return false;
+		Generation c;
+		// two copies arriving at once on different links must not both get through,
+		// the second one looks after the first has gone in wherever it went
+		synchronized(locks[h1 & (LOCKS-1)]){
+			Generations g = generations;
+			if(g.previous.contains(h1,h2,hashes,mask) || g.current.contains(h1,h2,hashes,mask)) return false;
+			c = g.current;
+			c.add(h1,h2,hashes,mask);
+		}
+		// only the id that fills the generation rotates it, and only if it is still current
+		if(c.count.incrementAndGet()==capacity) rotate(c);
+		return true;
+	}
+
+	public synchronized void rotate(){
+		generations = new Generations(new Generation(mask+1),generations.current);
+	}
+
+	/*
+	 * rotate if full is still the current generation, the timer or another full
+	 * generation may have rotated it out already
+	 */
+	private synchronized void rotate(Generation full){
+		if(generations.current==full) rotate();
+	}
+}
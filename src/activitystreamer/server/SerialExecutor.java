@@ -0,0 +1,71 @@
+package activitystreamer.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/*
+ * Runs the tasks of a single connection one at a time and in the order they were
+ * submitted, on top of a pool shared by all connections. Different connections
+ * therefore run in parallel while each one still sees its messages in order.
+ * With no pool the tasks run straight away on the calling thread.
+ */
+public class SerialExecutor implements Executor {
+	private static final Logger log = LogManager.getLogger();
+	// tasks to run before giving the pool thread back to other connections
+	private static final int BATCH = 64;
+	private final Executor pool;
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+	private boolean running = false;
+	private final Runnable drain = new Runnable(){
+		public void run(){
+			drain();
+		}
+	};
+
+	public SerialExecutor(Executor pool){
+		this.pool = pool;
+	}
+
+	@Override
+	public void execute(Runnable task){
+		if(pool==null){
+			task.run();
+			return;
+		}
+		synchronized(tasks){
+			tasks.add(task);
+			if(running) return;
+			running = true;
+		}
+		pool.execute(drain);
+	}
+
+	private void drain(){
+		for(int i=0;i<BATCH;i++){
+			Runnable task;
+			synchronized(tasks){
+				task = tasks.poll();
+				if(task==null){
+					running = false;
+					return;
+				}
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e){
+				log.error("task failed with exception: "+e);
+			}
+		}
+		// still more to do, go to the back of the pool's queue so others get a turn
+		pool.execute(drain);
+	}
+
+	public int size(){
+		synchronized(tasks){
+			return tasks.size();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/*
+ * Announces sent as digests. Instead of forwarding every SERVER_ANNOUNCE the
+ * moment it arrives, a server collects the announces that changed since its last
+ * activity interval and sends them on together, one SERVER_DIGEST per link, and
+ * only announces itself when its load has moved or it has been quiet too long.
+ *
+ * Every announce in a digest carries its server's sequence number, so a server
+ * keeps only the newest it has seen of each server however many links it arrives
+ * over, and the same announce is never sent on twice.
+ *
+ * A digest's servers are a json array of arrays, each the id, hostname, port,
+ * load, capacity, depth, parent and sequence number of one server, and after them
+ * its TopicSummary if it sent one, held in a string so the binary codec can carry
+ * it like any other field. A server only sends its summary when it has changed, an
+ * announce without one leaves the last one as it was.
+ */
+public class ServerDigest {
+
+	/*
+	 * one server's announce and its sequence number
+	 */
+	static class Entry {
+		final ServerInfo info;
+		final long seq;
+
+		Entry(ServerInfo info, long seq){
+			this.info = info;
+			this.seq = seq;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static String toJson(List<Entry> entries){
+		JSONArray servers = new JSONArray();
+		for(Entry e : entries){
+			JSONArray server = new JSONArray();
+			server.add(e.info.getId());
+			server.add(e.info.getHostname());
+			server.add(e.info.getPort());
+			server.add(e.info.getLoad());
+			server.add(e.info.getCapacity());
+			server.add(e.info.getDepth());
+			server.add(e.info.getParent());
+			server.add(e.seq);
+			if(e.info.getTopics()!=null) server.add(TopicSummary.toHex(e.info.getTopics()));
+			servers.add(server);
+		}
+		return servers.toJSONString();
+	}
+
+	/*
+	 * the announces in a digest, or null if it is not a digest
+	 */
+	static List<Entry> parse(String digest){
+		Object parsed;
+		try {
+			parsed = new JSONParser().parse(digest);
+		} catch (ParseException e){
+			return null;
+		}
+		if(!(parsed instanceof JSONArray)) return null;
+		List<Entry> entries = new ArrayList<Entry>();
+		for(Object o : (JSONArray) parsed){
+			if(!(o instanceof JSONArray)) return null;
+			JSONArray s = (JSONArray) o;
+			if(s.size()!=8 && s.size()!=9 || !(s.get(0) instanceof String) || !(s.get(1) instanceof String)) return null;
+			if(s.get(6)!=null && !(s.get(6) instanceof String)) return null;
+			for(int i=2;i<6;i++){
+				if(!(s.get(i) instanceof Long)) return null;
+			}
+			if(!(s.get(7) instanceof Long)) return null;
+			long[] topics = null;
+			if(s.size()==9){
+				if(!(s.get(8) instanceof String)) return null;
+				topics = TopicSummary.fromHex((String) s.get(8));
+				if(topics==null) return null;
+			}
+			ServerInfo info = new ServerInfo((String) s.get(0),(String) s.get(1),((Long) s.get(2)).intValue(),
+					((Long) s.get(3)).intValue(),((Long) s.get(4)).intValue(),((Long) s.get(5)).intValue(),(String) s.get(6),topics);
+			if(info.getCapacity()<1) return null;
+			entries.add(new Entry(info,(Long) s.get(7)));
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,76 @@
+package activitystreamer.server;
+
+/*
+ * What a server told us about itself in its last SERVER_ANNOUNCE.
+ */
+public class ServerInfo {
+	private final String id;
+	private final String hostname;
+	private final int port;
+	private final int load;
+	// how many clients it can take, relative to other servers
+	private final int capacity;
+	// links from the root of the tree, -1 if it did not say
+	private final int depth;
+	// the id of its parent in the tree, null for a root or if it did not say
+	private final String parent;
+	// its TopicSummary, null if it never said, and then it is sent every topic
+	private final long[] topics;
+
+	public ServerInfo(String id, String hostname, int port, int load, int capacity, int depth, String parent, long[] topics){
+		this.id = id;
+		this.hostname = hostname;
+		this.port = port;
+		this.load = load;
+		this.capacity = capacity;
+		this.depth = depth;
+		this.parent = parent;
+		this.topics = topics;
+	}
+
+	public String getId(){
+		return id;
+	}
+
+	public String getHostname(){
+		return hostname;
+	}
+
+	public int getPort(){
+		return port;
+	}
+
+	public int getLoad(){
+		return load;
+	}
+
+	public int getCapacity(){
+		return capacity;
+	}
+
+	public int getDepth(){
+		return depth;
+	}
+
+	public String getParent(){
+		return parent;
+	}
+
+	public long[] getTopics(){
+		return topics;
+	}
+
+	/*
+	 * the same announce with the summary it sent before
+	 */
+	public ServerInfo withTopics(long[] topics){
+		return new ServerInfo(id,hostname,port,load,capacity,depth,parent,topics);
+	}
+
+	/*
+	 * whether it may have a client subscribed to the topic
+	 */
+	public boolean wants(String topic){
+		return TopicSummary.mightContain(topics,topic);
+	}
+}
@@ -0,0 +1,116 @@
+package activitystreamer.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Which of this server's clients subscribe to which topics. Looking up a topic's
+ * subscribers never locks, as it is done for every activity, while subscribing
+ * and unsubscribing, which are rare, take the lock.
+ *
+ * It also keeps the server's TopicSummary, with a count for every bit so a bit
+ * is only cleared once the last topic that set it has no subscribers left.
+ */
+public class Subscriptions {
+	private final ConcurrentHashMap<String,Set<Connection>> byTopic = new ConcurrentHashMap<String,Set<Connection>>();
+	private final ConcurrentHashMap<Connection,Set<String>> byConnection = new ConcurrentHashMap<Connection,Set<String>>();
+	private final int[] counts = new int[TopicSummary.BITS];
+	private volatile long[] summary = new long[0];
+	// goes up every time the summary changes
+	private volatile int version = 0;
+
+	/*
+	 * the connections subscribed to a topic, empty if there are none
+	 */
+	public Set<Connection> subscribers(String topic){
+		Set<Connection> subscribers = byTopic.get(topic);
+		if(subscribers==null) return Collections.emptySet();
+		return subscribers;
+	}
+
+	/*
+	 * returns true if the summary changed
+	 */
+	public synchronized boolean subscribe(Connection con, String topic){
+		Set<String> topics = byConnection.get(con);
+		if(topics==null){
+			topics = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+			byConnection.put(con,topics);
+		}
+		if(!topics.add(topic)) return false;
+		Set<Connection> subscribers = byTopic.get(topic);
+		if(subscribers==null){
+			subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Connection,Boolean>());
+			byTopic.put(topic,subscribers);
+		}
+		subscribers.add(con);
+		return subscribers.size()==1 && count(topic,1);
+	}
+
+	/*
+	 * returns true if the summary changed
+	 */
+	public synchronized boolean unsubscribe(Connection con, String topic){
+		Set<String> topics = byConnection.get(con);
+		if(topics==null || !topics.remove(topic)) return false;
+		if(topics.isEmpty()) byConnection.remove(con);
+		return drop(con,topic);
+	}
+
+	/*
+	 * forget everything a connection subscribed to, returns true if the summary changed
+	 */
+	public synchronized boolean remove(Connection con){
+		Set<String> topics = byConnection.remove(con);
+		if(topics==null) return false;
+		boolean changed = false;
+		for(String topic : topics){
+			changed |= drop(con,topic);
+		}
+		return changed;
+	}
+
+	private boolean drop(Connection con, String topic){
+		Set<Connection> subscribers = byTopic.get(topic);
+		subscribers.remove(con);
+		if(!subscribers.isEmpty()) return false;
+		byTopic.remove(topic);
+		return count(topic,-1);
+	}
+
+	/*
+	 * add to or take from the counts of a topic's bits, and rebuild the summary if a bit
+	 * went on or off
+	 */
+	private boolean count(String topic, int by){
+		int a = TopicSummary.first(topic);
+		int b = TopicSummary.second(topic);
+		boolean flipped = (counts[a]==0)!=(counts[a]+by==0);
+		counts[a] += by;
+		if(b!=a){
+			flipped |= (counts[b]==0)!=(counts[b]+by==0);
+			counts[b] += by;
+		}
+		if(!flipped) return false;
+		long[] bits = new long[TopicSummary.BITS/64];
+		boolean any = false;
+		for(int i=0;i<counts.length;i++){
+			if(counts[i]>0){
+				bits[i>>>6] |= 1L<<i;
+				any = true;
+			}
+		}
+		summary = any ? bits : new long[0];
+		version++;
+		return true;
+	}
+
+	public long[] getSummary(){
+		return summary;
+	}
+
+	public int getVersion(){
+		return version;
+	}
+}
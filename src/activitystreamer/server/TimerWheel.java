@@ -0,0 +1,121 @@
+package activitystreamer.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Threads;
+
+/*
+ * A hashed timer wheel for the many short deadlines the server keeps, such as
+ * pending registrations. Scheduling and cancelling are just a queue add and a
+ * flag, however many timeouts there are, and one thread runs everything that
+ * is due once per tick. Tasks run on that thread so they must be quick.
+ *
+ * A timeout further away than one turn of the wheel stays in its slot and is
+ * skipped until the turn it is due in.
+ */
+public class TimerWheel implements Runnable {
+	private static final Logger log = LogManager.getLogger();
+	private final long tick;
+	private final Timeout[] slots;
+	private final int mask;
+	// timeouts scheduled since the last tick, only the wheel's thread touches the slots
+	private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+	private final long start = System.nanoTime();
+	private long ticks = 0;
+	private volatile boolean term = false;
+	private final Thread thread;
+
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled = false;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline){
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public void cancel(){
+			cancelled = true;
+		}
+	}
+
+	/*
+	 * slots is rounded up to a power of two
+	 */
+	public TimerWheel(long tick, int slots, String name){
+		this.tick = tick;
+		int n = Integer.highestOneBit(Math.max(slots-1,1))<<1;
+		this.slots = new Timeout[n];
+		this.mask = n-1;
+		thread = Threads.newThread(this,name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * run task on the wheel's thread once delay milliseconds have passed
+	 */
+	public Timeout schedule(Runnable task, long delay){
+		// the deadline is in ticks since the wheel started, rounded up
+		long now = (System.nanoTime()-start)/1000000;
+		Timeout t = new Timeout(task,(now+delay+tick-1)/tick);
+		incoming.add(t);
+		return t;
+	}
+
+	@Override
+	public void run(){
+		while(!term){
+			long next = (ticks+1)*tick*1000000;
+			long wait = (next-(System.nanoTime()-start))/1000000;
+			if(wait>0){
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			ticks++;
+			Timeout t;
+			while((t = incoming.poll())!=null){
+				if(t.cancelled) continue;
+				int slot = (int) (Math.max(t.deadline,ticks) & mask);
+				t.next = slots[slot];
+				slots[slot] = t;
+			}
+			expire((int) (ticks & mask));
+		}
+	}
+
+	private void expire(int slot){
+		Timeout t = slots[slot];
+		Timeout keep = null;
+		while(t!=null){
+			Timeout next = t.next;
+			if(t.cancelled){
+				// dropped
+			} else if(t.deadline<=ticks){
+				try {
+					t.task.run();
+				} catch (RuntimeException e) {
+					log.error("timer task failed: "+e);
+				}
+			} else {
+				t.next = keep;
+				keep = t;
+			}
+			t = next;
+		}
+		slots[slot] = keep;
+	}
+
+	public void setTerm(boolean term){
+		this.term = term;
+		if(term) thread.interrupt();
+	}
+}
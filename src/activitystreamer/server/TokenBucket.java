@@ -0,0 +1,28 @@
+package activitystreamer.server;
+
+/*
+ * A token bucket for rate limiting, refilled at rate tokens a second and holding
+ * at most burst of them. The rate and burst are passed in on every take rather
+ * than fixed, so a change to the settings applies to buckets that already exist.
+ */
+public class TokenBucket {
+	private double tokens = -1;
+	private long last;
+
+	/*
+	 * returns true if there was a token to take
+	 */
+	public synchronized boolean take(double rate, double burst){
+		long now = System.nanoTime();
+		if(tokens<0){
+			// a new bucket starts full
+			tokens = burst;
+		} else {
+			tokens = Math.min(burst,tokens+(now-last)*rate/1e9);
+		}
+		last = now;
+		if(tokens<1) return false;
+		tokens -= 1;
+		return true;
+	}
+}
@@ -0,0 +1,73 @@
+package activitystreamer.server;
+
+/*
+ * What topics a server has subscribers for, as a bloom filter that goes out with
+ * its announces. Other servers only send an activity with a topic towards the
+ * servers whose summary has it. A summary can say a server has a topic when it
+ * has not, which costs an activity sent for nothing, but never the other way round.
+ *
+ * A summary is BITS bits as hex, sixteen digits to a word, and the empty string
+ * for a server with no subscribers at all. As it is a kilobyte once there are any
+ * subscribers, a server only puts it in an announce when it has changed, and now
+ * and then for the servers that missed it.
+ */
+public class TopicSummary {
+	static final int BITS = 4096;
+	private static final int WORDS = BITS/64;
+
+	/*
+	 * the two bits a topic sets
+	 */
+	static int first(String topic){
+		return (int) (HashRing.hash(topic) & (BITS-1));
+	}
+
+	static int second(String topic){
+		return (int) ((HashRing.hash(topic)>>>32) & (BITS-1));
+	}
+
+	/*
+	 * whether a server with this summary may have subscribers for the topic,
+	 * a server that sent no summary gets everything
+	 */
+	static boolean mightContain(long[] summary, String topic){
+		if(summary==null) return true;
+		if(summary.length==0) return false;
+		int a = first(topic);
+		int b = second(topic);
+		return (summary[a>>>6] & 1L<<a)!=0 && (summary[b>>>6] & 1L<<b)!=0;
+	}
+
+	static String toHex(long[] summary){
+		if(summary.length==0) return "";
+		StringBuilder sb = new StringBuilder(WORDS*16);
+		for(long word : summary){
+			String h = Long.toHexString(word);
+			for(int i=h.length();i<16;i++){
+				sb.append('0');
+			}
+			sb.append(h);
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * null if it is not a summary
+	 */
+	static long[] fromHex(String hex){
+		if(hex.isEmpty()) return new long[0];
+		if(hex.length()!=WORDS*16) return null;
+		long[] summary = new long[WORDS];
+		try {
+			for(int i=0;i<WORDS;i++){
+				// two halves, parseLong does not take the top bit
+				long high = Long.parseLong(hex.substring(i*16,i*16+8),16);
+				long low = Long.parseLong(hex.substring(i*16+8,i*16+16),16);
+				summary[i] = high<<32 | low;
+			}
+		} catch (NumberFormatException e){
+			return null;
+		}
+		return summary;
+	}
+}
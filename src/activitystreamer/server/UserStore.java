@@ -0,0 +1,55 @@
+package activitystreamer.server;
+
+import java.util.Map;
+
+/*
+ * Where the server keeps the usernames it knows about. Secrets are never kept,
+ * only each user's credential, see CredentialTable. Every method can be called
+ * from any number of threads at once.
+ */
+public interface UserStore {
+
+	boolean contains(String username);
+
+	/*
+	 * whether the user exists and this is its secret
+	 */
+	boolean matches(String username, String secret);
+
+	/*
+	 * the user's credential, or null if there is no such user
+	 */
+	String getCredential(String username);
+
+	/*
+	 * add the user unless the username is taken, returns true if it was added
+	 */
+	boolean putIfAbsent(String username, String secret);
+
+	/*
+	 * add the user, replacing whatever secret the username had
+	 */
+	void put(String username, String secret);
+
+	/*
+	 * add the user with a credential from another server, replacing whatever it had
+	 */
+	void putCredential(String username, String credential);
+
+	/*
+	 * remove the user only if it has this secret, returns true if it was removed
+	 */
+	boolean remove(String username, String secret);
+
+	int size();
+
+	/*
+	 * every user and its credential, changes made while iterating may or may not be seen
+	 */
+	Iterable<Map.Entry<String,String>> entries();
+
+	/*
+	 * make sure everything is stored before the server exits
+	 */
+	void close();
+}
@@ -0,0 +1,120 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/*
+ * Moving the user registry to a server that has just joined. The joining server
+ * sends a digest of the users it already has with its AUTHENTICATE, and the
+ * server it joined sends back every user in the buckets where the digests differ,
+ * a chunk of users per USER_SYNC message. A new server has an empty registry and
+ * gets everything, one that is rejoining only gets what changed while it was away.
+ *
+ * Users are split into buckets by the hash of their username, and a bucket's
+ * digest is the sum of the hashes of its users and their credentials, so it does
+ * not depend on the order the users are kept in.
+ *
+ * A chunk's users are a json array of username and credential pairs, held in a string
+ * so the binary codec can carry it like any other field.
+ */
+public class UserSync {
+	static final int BUCKETS = 256;
+	static final int CHUNK = 512;
+
+	static int bucket(String username){
+		return (int) (HashRing.hash(username) & (BUCKETS-1));
+	}
+
+	private static long hash(String username, String credential){
+		return HashRing.hash(username+"\0"+credential);
+	}
+
+	static long[] digest(UserStore users){
+		long[] digest = new long[BUCKETS];
+		for(Map.Entry<String,String> user : users.entries()){
+			digest[bucket(user.getKey())] += hash(user.getKey(),user.getValue());
+		}
+		return digest;
+	}
+
+	static String toHex(long[] digest){
+		StringBuilder sb = new StringBuilder(digest.length*16);
+		for(long d : digest){
+			String h = Long.toHexString(d);
+			for(int i=h.length();i<16;i++){
+				sb.append('0');
+			}
+			sb.append(h);
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * null if it is not a digest
+	 */
+	static long[] fromHex(String hex){
+		if(hex==null || hex.length()!=BUCKETS*16) return null;
+		long[] digest = new long[BUCKETS];
+		try {
+			for(int i=0;i<BUCKETS;i++){
+				// two halves, parseLong does not take the top bit
+				long high = Long.parseLong(hex.substring(i*16,i*16+8),16);
+				long low = Long.parseLong(hex.substring(i*16+8,i*16+16),16);
+				digest[i] = high<<32 | low;
+			}
+		} catch (NumberFormatException e){
+			return null;
+		}
+		return digest;
+	}
+
+	/*
+	 * the buckets where ours differs from theirs
+	 */
+	static boolean[] differing(long[] ours, long[] theirs){
+		boolean[] differ = new boolean[BUCKETS];
+		for(int i=0;i<BUCKETS;i++){
+			differ[i] = ours[i]!=theirs[i];
+		}
+		return differ;
+	}
+
+	@SuppressWarnings("unchecked")
+	static String chunk(List<String[]> users){
+		JSONArray chunk = new JSONArray();
+		for(String[] user : users){
+			JSONArray pair = new JSONArray();
+			pair.add(user[0]);
+			pair.add(user[1]);
+			chunk.add(pair);
+		}
+		return chunk.toJSONString();
+	}
+
+	/*
+	 * the username and credential pairs in a chunk, or null if it is not a chunk
+	 */
+	static List<String[]> parse(String chunk){
+		Object parsed;
+		try {
+			parsed = new JSONParser().parse(chunk);
+		} catch (ParseException e){
+			return null;
+		}
+		if(!(parsed instanceof JSONArray)) return null;
+		List<String[]> users = new ArrayList<String[]>();
+		for(Object o : (JSONArray) parsed){
+			if(!(o instanceof JSONArray)) return null;
+			JSONArray pair = (JSONArray) o;
+			if(pair.size()!=2 || !(pair.get(0) instanceof String) || !(pair.get(1) instanceof String)) return null;
+			if(CredentialTable.fromHex((String) pair.get(1))==null) return null;
+			users.add(new String[]{(String) pair.get(0),(String) pair.get(1)});
+		}
+		return users;
+	}
+}
@@ -1,8 +1,11 @@
 package activitystreamer.util;
 
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,6 +20,56 @@ public class Settings {
 	private static int activityInterval = 5000; // milliseconds
 	private static String secret = null;
 	private static String username = "anonymous";
+	private static String ioEngine = "thread"; // thread or nio
+	private static String threadMode = "platform"; // platform or virtual
+	private static int reactorThreads = 2;
+	private static int workerThreads = Runtime.getRuntime().availableProcessors();
+	private static int maxFrameSize = 1024*1024; // bytes
+	private static int outboundQueueSize = 1024; // messages
+	private static String overflowPolicy = "disconnect"; // drop-oldest, disconnect or block
+	private static int writeBatch = 64; // messages per write
+	private static int writeBufferSize = 64*1024; // bytes
+	private static String serverCodec = "json"; // json or binary, for links to other servers
+	private static String compression = "none"; // none or deflate, for links to other servers
+	private static String compressionFlush = "batch"; // frame or batch
+	private static int batchWindow = 0; // milliseconds, 0 writes server links straight away
+	private static int batchBytes = 32*1024; // bytes
+	private static String registration = "flood"; // flood or shard
+	private static int lockTimeout = 3000; // milliseconds
+	private static String userStore = "memory"; // memory or log
+	private static String userDir = "users";
+	private static String walSync = "interval"; // always, interval or never
+	private static int walSyncInterval = 100; // milliseconds
+	private static long snapshotBytes = 64*1024*1024; // bytes of log between snapshots
+	private static String redirectPolicy = "least"; // least, two-choices or weighted
+	private static int capacity = 1000; // clients, relative to the other servers
+	private static int linkTimeout = 15000; // milliseconds without a message before a server link is dead
+	private static List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>(); // servers to link to besides the remote host
+	private static List<String> topics = new ArrayList<String>(); // topics a client subscribes to once logged in
+	private static List<String> filters = new ArrayList<String>(); // filters a client puts on its activities once logged in
+	private static int dedupWindow = 30000; // milliseconds a flooded message is remembered for
+	private static int dedupCapacity = 1<<18; // flooded messages remembered per window
+	private static String overlay = "flood"; // flood or tree
+	private static int handshakeTimeout = 5000; // milliseconds a new connection has to send its first message
+	private static int handshakeThreads = 16; // threads reading first messages for the thread engine
+	private static int acceptQueue = 1024; // accepted connections waiting for a handshake thread
+	// the limits are read every time they are used, so they can be changed while the server runs
+	private static volatile int maxClients = 0; // clients this server takes before turning logins away, 0 for no limit
+	private static volatile int maxServers = 0; // server links this server accepts, 0 for no limit
+	private static volatile int shedLoad = 0; // clients past which new logins are redirected wherever there is room, 0 never
+	private static volatile double activityRate = 0; // activities a second one connection can send, 0 for no limit
+	private static volatile double activityBurst = 20; // activities one connection can send at once after being quiet
+	private static volatile double userRate = 0; // activities a second one user can send over all its connections, 0 for no limit
+	private static volatile double userBurst = 50; // activities one user can send at once after being quiet
+	private static String announce = "full"; // full or digest
+	private static int announceDelta = 10; // clients the load has to move by before a digest announces it
+	private static int announceMax = 20000; // milliseconds a digest server can go without announcing
+	private static String activityLog = "none"; // none or disk
+	private static String activityDir = "activities";
+	private static long segmentBytes = 16*1024*1024; // bytes in each file of the activity log
+	private static long retainBytes = 256*1024*1024; // bytes of activities kept for clients to catch up on
+	private static long retainTime = 3600000; // milliseconds activities are kept for clients to catch up on
+	private static int replayMax = 1000; // most activities a resuming client is sent
 
 	
 	public static int getLocalPort() {
@@ -82,6 +135,605 @@ public class Settings {
 	public static void setLocalHostname(String localHostname) {
 		Settings.localHostname = localHostname;
 	}
+	
+	public static String getIoEngine() {
+		return ioEngine;
+	}
+
+	public static void setIoEngine(String ioEngine) {
+		if(!ioEngine.equals("thread") && !ioEngine.equals("nio")){
+			log.error("supplied io engine "+ioEngine+" is unknown, using "+getIoEngine());
+		} else {
+			Settings.ioEngine = ioEngine;
+		}
+	}
+	
+	public static String getThreadMode() {
+		return threadMode;
+	}
+
+	public static void setThreadMode(String threadMode) {
+		if(!threadMode.equals("platform") && !threadMode.equals("virtual")){
+			log.error("supplied thread mode "+threadMode+" is unknown, using "+getThreadMode());
+		} else {
+			Settings.threadMode = threadMode;
+		}
+	}
+	
+	public static int getReactorThreads() {
+		return reactorThreads;
+	}
+
+	public static void setReactorThreads(int reactorThreads) {
+		if(reactorThreads<1){
+			log.error("supplied reactor thread count "+reactorThreads+" is out of range, using "+getReactorThreads());
+		} else {
+			Settings.reactorThreads = reactorThreads;
+		}
+	}
+	
+	public static int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	public static void setWorkerThreads(int workerThreads) {
+		if(workerThreads<0){
+			log.error("supplied worker thread count "+workerThreads+" is out of range, using "+getWorkerThreads());
+		} else {
+			Settings.workerThreads = workerThreads;
+		}
+	}
+	
+	public static int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public static void setMaxFrameSize(int maxFrameSize) {
+		Settings.maxFrameSize = maxFrameSize;
+	}
+
+	public static int getOutboundQueueSize() {
+		return outboundQueueSize;
+	}
+
+	public static void setOutboundQueueSize(int outboundQueueSize) {
+		if(outboundQueueSize<1){
+			log.error("supplied outbound queue size "+outboundQueueSize+" is out of range, using "+getOutboundQueueSize());
+		} else {
+			Settings.outboundQueueSize = outboundQueueSize;
+		}
+	}
+	
+	public static String getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public static void setOverflowPolicy(String overflowPolicy) {
+		if(!overflowPolicy.equals("drop-oldest") && !overflowPolicy.equals("disconnect") && !overflowPolicy.equals("block")){
+			log.error("supplied overflow policy "+overflowPolicy+" is unknown, using "+getOverflowPolicy());
+		} else {
+			Settings.overflowPolicy = overflowPolicy;
+		}
+	}
+	
+	public static int getWriteBatch() {
+		return writeBatch;
+	}
+
+	public static void setWriteBatch(int writeBatch) {
+		Settings.writeBatch = writeBatch;
+	}
+	
+	public static int getWriteBufferSize() {
+		return writeBufferSize;
+	}
+
+	public static void setWriteBufferSize(int writeBufferSize) {
+		Settings.writeBufferSize = writeBufferSize;
+	}
+	
+	public static String getServerCodec() {
+		return serverCodec;
+	}
+
+	public static void setServerCodec(String serverCodec) {
+		if(!serverCodec.equals("json") && !serverCodec.equals("binary")){
+			log.error("supplied server codec "+serverCodec+" is unknown, using "+getServerCodec());
+		} else {
+			Settings.serverCodec = serverCodec;
+		}
+	}
+	
+	public static String getCompression() {
+		return compression;
+	}
+
+	public static void setCompression(String compression) {
+		if(!compression.equals("none") && !compression.equals("deflate")){
+			log.error("supplied compression "+compression+" is unknown, using "+getCompression());
+		} else {
+			Settings.compression = compression;
+		}
+	}
+	
+	public static int getBatchWindow() {
+		return batchWindow;
+	}
+
+	public static void setBatchWindow(int batchWindow) {
+		if(batchWindow<0){
+			log.error("supplied batch window "+batchWindow+" is negative, using "+getBatchWindow());
+		} else {
+			Settings.batchWindow = batchWindow;
+		}
+	}
+	
+	public static int getBatchBytes() {
+		return batchBytes;
+	}
+
+	public static void setBatchBytes(int batchBytes) {
+		if(batchBytes<1){
+			log.error("supplied batch size "+batchBytes+" is too small, using "+getBatchBytes());
+		} else {
+			Settings.batchBytes = batchBytes;
+		}
+	}
+	
+	public static String getRegistration() {
+		return registration;
+	}
+
+	public static void setRegistration(String registration) {
+		if(!registration.equals("flood") && !registration.equals("shard")){
+			log.error("supplied registration mode "+registration+" is unknown, using "+getRegistration());
+		} else {
+			Settings.registration = registration;
+		}
+	}
+	
+	public static int getLockTimeout() {
+		return lockTimeout;
+	}
+
+	public static void setLockTimeout(int lockTimeout) {
+		if(lockTimeout<1){
+			log.error("supplied lock timeout "+lockTimeout+" is too small, using "+getLockTimeout());
+		} else {
+			Settings.lockTimeout = lockTimeout;
+		}
+	}
+	
+	public static String getUserStore() {
+		return userStore;
+	}
+
+	public static void setUserStore(String userStore) {
+		if(!userStore.equals("memory") && !userStore.equals("log")){
+			log.error("supplied user store "+userStore+" is unknown, using "+getUserStore());
+		} else {
+			Settings.userStore = userStore;
+		}
+	}
+	
+	public static String getUserDir() {
+		return userDir;
+	}
+
+	public static void setUserDir(String userDir) {
+		Settings.userDir = userDir;
+	}
+	
+	public static String getWalSync() {
+		return walSync;
+	}
+
+	public static void setWalSync(String walSync) {
+		if(!walSync.equals("always") && !walSync.equals("interval") && !walSync.equals("never")){
+			log.error("supplied log sync policy "+walSync+" is unknown, using "+getWalSync());
+		} else {
+			Settings.walSync = walSync;
+		}
+	}
+	
+	public static int getWalSyncInterval() {
+		return walSyncInterval;
+	}
+
+	public static void setWalSyncInterval(int walSyncInterval) {
+		if(walSyncInterval<1){
+			log.error("supplied log sync interval "+walSyncInterval+" is too small, using "+getWalSyncInterval());
+		} else {
+			Settings.walSyncInterval = walSyncInterval;
+		}
+	}
+	
+	public static long getSnapshotBytes() {
+		return snapshotBytes;
+	}
+
+	public static void setSnapshotBytes(long snapshotBytes) {
+		if(snapshotBytes<1024){
+			log.error("supplied snapshot size "+snapshotBytes+" is too small, using "+getSnapshotBytes());
+		} else {
+			Settings.snapshotBytes = snapshotBytes;
+		}
+	}
+	
+	public static String getRedirectPolicy() {
+		return redirectPolicy;
+	}
+
+	public static void setRedirectPolicy(String redirectPolicy) {
+		if(!redirectPolicy.equals("least") && !redirectPolicy.equals("two-choices") && !redirectPolicy.equals("weighted")){
+			log.error("supplied redirect policy "+redirectPolicy+" is unknown, using "+getRedirectPolicy());
+		} else {
+			Settings.redirectPolicy = redirectPolicy;
+		}
+	}
+	
+	public static int getCapacity() {
+		return capacity;
+	}
+
+	public static void setCapacity(int capacity) {
+		if(capacity<1){
+			log.error("supplied capacity "+capacity+" is too small, using "+getCapacity());
+		} else {
+			Settings.capacity = capacity;
+		}
+	}
+	
+	public static int getLinkTimeout() {
+		return linkTimeout;
+	}
+
+	public static void setLinkTimeout(int linkTimeout) {
+		if(linkTimeout<1){
+			log.error("supplied link timeout "+linkTimeout+" is too small, using "+getLinkTimeout());
+		} else {
+			Settings.linkTimeout = linkTimeout;
+		}
+	}
+	
+	public static List<InetSocketAddress> getPeers() {
+		return peers;
+	}
+
+	/*
+	 * a comma separated list of host:port
+	 */
+	public static void setPeers(String peers) {
+		List<InetSocketAddress> parsed = new ArrayList<InetSocketAddress>();
+		for(String peer : peers.split(",")){
+			peer = peer.trim();
+			if(peer.isEmpty()) continue;
+			int colon = peer.lastIndexOf(':');
+			int port = -1;
+			try {
+				if(colon>0) port = Integer.parseInt(peer.substring(colon+1));
+			} catch (NumberFormatException e) {
+			}
+			if(port<0 || port>65535){
+				log.error("supplied peer "+peer+" is not host:port, ignoring the peers");
+				return;
+			}
+			parsed.add(InetSocketAddress.createUnresolved(peer.substring(0,colon),port));
+		}
+		Settings.peers = parsed;
+	}
+	
+	public static List<String> getTopics() {
+		return topics;
+	}
+
+	/*
+	 * a comma separated list of topics
+	 */
+	public static void setTopics(String topics) {
+		List<String> parsed = new ArrayList<String>();
+		for(String topic : topics.split(",")){
+			topic = topic.trim();
+			if(!topic.isEmpty() && !parsed.contains(topic)) parsed.add(topic);
+		}
+		Settings.topics = parsed;
+	}
+	
+	public static List<String> getFilters() {
+		return filters;
+	}
+
+	/*
+	 * filters separated by semicolons, each key=value pairs separated by commas
+	 */
+	public static void setFilters(String filters) {
+		List<String> parsed = new ArrayList<String>();
+		for(String filter : filters.split(";")){
+			filter = filter.trim();
+			if(filter.isEmpty()) continue;
+			if(filter.indexOf('=')<=0){
+				log.error("supplied filter "+filter+" is not key=value, ignoring the filters");
+				return;
+			}
+			parsed.add(filter);
+		}
+		Settings.filters = parsed;
+	}
+	
+	public static int getDedupWindow() {
+		return dedupWindow;
+	}
+
+	public static void setDedupWindow(int dedupWindow) {
+		if(dedupWindow<1){
+			log.error("supplied dedup window "+dedupWindow+" is too small, using "+getDedupWindow());
+		} else {
+			Settings.dedupWindow = dedupWindow;
+		}
+	}
+	
+	public static int getDedupCapacity() {
+		return dedupCapacity;
+	}
+
+	public static void setDedupCapacity(int dedupCapacity) {
+		if(dedupCapacity<1){
+			log.error("supplied dedup capacity "+dedupCapacity+" is too small, using "+getDedupCapacity());
+		} else {
+			Settings.dedupCapacity = dedupCapacity;
+		}
+	}
+	
+	public static String getOverlay() {
+		return overlay;
+	}
+
+	public static void setOverlay(String overlay) {
+		if(!overlay.equals("flood") && !overlay.equals("tree")){
+			log.error("supplied overlay "+overlay+" is unknown, using "+getOverlay());
+		} else {
+			Settings.overlay = overlay;
+		}
+	}
+	
+	public static String getAnnounce() {
+		return announce;
+	}
+
+	public static void setAnnounce(String announce) {
+		if(!announce.equals("full") && !announce.equals("digest")){
+			log.error("supplied announce mode "+announce+" is unknown, using "+getAnnounce());
+		} else {
+			Settings.announce = announce;
+		}
+	}
+	
+	public static int getAnnounceDelta() {
+		return announceDelta;
+	}
+
+	public static void setAnnounceDelta(int announceDelta) {
+		if(announceDelta<1){
+			log.error("supplied announce delta "+announceDelta+" is too small, using "+getAnnounceDelta());
+		} else {
+			Settings.announceDelta = announceDelta;
+		}
+	}
+	
+	/*
+	 * never less than the activity interval
+	 */
+	public static int getAnnounceMax() {
+		return Math.max(announceMax,activityInterval);
+	}
+
+	public static void setAnnounceMax(int announceMax) {
+		if(announceMax<1){
+			log.error("supplied announce max "+announceMax+" is too small, using "+getAnnounceMax());
+		} else {
+			Settings.announceMax = announceMax;
+		}
+	}
+	
+	public static int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	public static void setHandshakeTimeout(int handshakeTimeout) {
+		if(handshakeTimeout<1){
+			log.error("supplied handshake timeout "+handshakeTimeout+" is too small, using "+getHandshakeTimeout());
+		} else {
+			Settings.handshakeTimeout = handshakeTimeout;
+		}
+	}
+	
+	public static int getHandshakeThreads() {
+		return handshakeThreads;
+	}
+
+	public static void setHandshakeThreads(int handshakeThreads) {
+		if(handshakeThreads<1){
+			log.error("supplied handshake threads "+handshakeThreads+" is too small, using "+getHandshakeThreads());
+		} else {
+			Settings.handshakeThreads = handshakeThreads;
+		}
+	}
+	
+	public static int getAcceptQueue() {
+		return acceptQueue;
+	}
+
+	public static void setAcceptQueue(int acceptQueue) {
+		if(acceptQueue<1){
+			log.error("supplied accept queue "+acceptQueue+" is too small, using "+getAcceptQueue());
+		} else {
+			Settings.acceptQueue = acceptQueue;
+		}
+	}
+	
+	public static int getMaxClients() {
+		return maxClients;
+	}
+
+	public static void setMaxClients(int maxClients) {
+		if(maxClients<0){
+			log.error("supplied max clients "+maxClients+" is too small, using "+getMaxClients());
+		} else {
+			Settings.maxClients = maxClients;
+		}
+	}
+	
+	public static int getMaxServers() {
+		return maxServers;
+	}
+
+	public static void setMaxServers(int maxServers) {
+		if(maxServers<0){
+			log.error("supplied max servers "+maxServers+" is too small, using "+getMaxServers());
+		} else {
+			Settings.maxServers = maxServers;
+		}
+	}
+	
+	public static int getShedLoad() {
+		return shedLoad;
+	}
+
+	public static void setShedLoad(int shedLoad) {
+		if(shedLoad<0){
+			log.error("supplied shed load "+shedLoad+" is too small, using "+getShedLoad());
+		} else {
+			Settings.shedLoad = shedLoad;
+		}
+	}
+	
+	public static double getActivityRate() {
+		return activityRate;
+	}
+
+	public static void setActivityRate(double activityRate) {
+		if(activityRate<0){
+			log.error("supplied activity rate "+activityRate+" is too small, using "+getActivityRate());
+		} else {
+			Settings.activityRate = activityRate;
+		}
+	}
+	
+	public static double getActivityBurst() {
+		return activityBurst;
+	}
+
+	public static void setActivityBurst(double activityBurst) {
+		if(activityBurst<1){
+			log.error("supplied activity burst "+activityBurst+" is too small, using "+getActivityBurst());
+		} else {
+			Settings.activityBurst = activityBurst;
+		}
+	}
+	
+	public static double getUserRate() {
+		return userRate;
+	}
+
+	public static void setUserRate(double userRate) {
+		if(userRate<0){
+			log.error("supplied user rate "+userRate+" is too small, using "+getUserRate());
+		} else {
+			Settings.userRate = userRate;
+		}
+	}
+	
+	public static double getUserBurst() {
+		return userBurst;
+	}
+
+	public static void setUserBurst(double userBurst) {
+		if(userBurst<1){
+			log.error("supplied user burst "+userBurst+" is too small, using "+getUserBurst());
+		} else {
+			Settings.userBurst = userBurst;
+		}
+	}
+	
+	public static String getActivityLog() {
+		return activityLog;
+	}
+
+	public static void setActivityLog(String activityLog) {
+		if(!activityLog.equals("none") && !activityLog.equals("disk")){
+			log.error("supplied activity log "+activityLog+" is unknown, using "+getActivityLog());
+		} else {
+			Settings.activityLog = activityLog;
+		}
+	}
+	
+	public static String getActivityDir() {
+		return activityDir;
+	}
+
+	public static void setActivityDir(String activityDir) {
+		Settings.activityDir = activityDir;
+	}
+	
+	public static long getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	public static void setSegmentBytes(long segmentBytes) {
+		if(segmentBytes<64*1024 || segmentBytes>Integer.MAX_VALUE){
+			log.error("supplied segment size "+segmentBytes+" is out of range, using "+getSegmentBytes());
+		} else {
+			Settings.segmentBytes = segmentBytes;
+		}
+	}
+	
+	public static long getRetainBytes() {
+		return retainBytes;
+	}
+
+	public static void setRetainBytes(long retainBytes) {
+		if(retainBytes<0){
+			log.error("supplied retained bytes "+retainBytes+" is negative, using "+getRetainBytes());
+		} else {
+			Settings.retainBytes = retainBytes;
+		}
+	}
+	
+	public static long getRetainTime() {
+		return retainTime;
+	}
+
+	public static void setRetainTime(long retainTime) {
+		if(retainTime<0){
+			log.error("supplied retention time "+retainTime+" is negative, using "+getRetainTime());
+		} else {
+			Settings.retainTime = retainTime;
+		}
+	}
+	
+	public static int getReplayMax() {
+		return replayMax;
+	}
+
+	public static void setReplayMax(int replayMax) {
+		if(replayMax<0){
+			log.error("supplied replay max "+replayMax+" is negative, using "+getReplayMax());
+		} else {
+			Settings.replayMax = replayMax;
+		}
+	}
+	
+	public static String getCompressionFlush() {
+		return compressionFlush;
+	}
+
+	public static void setCompressionFlush(String compressionFlush) {
+		if(!compressionFlush.equals("frame") && !compressionFlush.equals("batch")){
+			log.error("supplied compression flush policy "+compressionFlush+" is unknown, using "+getCompressionFlush());
+		} else {
+			Settings.compressionFlush = compressionFlush;
+		}
+	}
 
 	
 	/*
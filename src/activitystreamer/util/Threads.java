@@ -0,0 +1,52 @@
+package activitystreamer.util;
+
+import java.lang.reflect.Method;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/*
+ * Creates the threads that connections, the listener and the client run on.
+ * In the virtual thread mode they are virtual threads, if the JDK we are
+ * running on has them, otherwise ordinary platform threads.
+ * The virtual thread api is looked up by reflection so we still build for older JDKs.
+ */
+public class Threads {
+	private static final Logger log = LogManager.getLogger();
+	private static boolean resolved = false;
+	private static Method ofVirtual = null;
+	private static Method name = null;
+	private static Method unstarted = null;
+
+	/*
+	 * returns a new thread that has not been started yet
+	 */
+	public static Thread newThread(Runnable r, String threadName){
+		if(Settings.getThreadMode().equals("virtual") && resolve()){
+			try {
+				Object builder = ofVirtual.invoke(null);
+				builder = name.invoke(builder,threadName);
+				return (Thread) unstarted.invoke(builder,r);
+			} catch (ReflectiveOperationException e) {
+				log.error("failed to create a virtual thread, using a platform thread: "+e);
+			}
+		}
+		return new Thread(r,threadName);
+	}
+
+	private static synchronized boolean resolve(){
+		if(!resolved){
+			resolved = true;
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builder.getMethod("name",String.class);
+				unstarted = builder.getMethod("unstarted",Runnable.class);
+			} catch (ReflectiveOperationException e) {
+				log.warn("virtual threads are not available on this JDK, using platform threads");
+				ofVirtual = null;
+			}
+		}
+		return ofVirtual!=null;
+	}
+}